@@ -0,0 +1,433 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * output stream that copies writes into large batches and hands them to a writer thread, which writes every batch
+ * queued so far to a FileChannel with one gathering write, or with positional writes from a given offset, or to any
+ * other gathering channel such as the sink of a pipe. The
+ * caller never waits on the disk unless all batches are in flight, which bounds memory use at batchSize * batches.
+ * It can also keep a CRC-32 of the bytes that reach the file and tell a listener once everything written before a
+ * {@link #sync(SyncListener)} is on the disk.
+ *
+ * The writer thread is the stream's own unless it is given an executor, e.g. a few threads shared by the writers of
+ * many transfers, which then runs the writes of each stream as one task at a time
+ */
+public class AsyncChannelWriter extends OutputStream {
+
+    static final int DEFAULT_BATCH_SIZE = 64 * 1024;
+    static final int DEFAULT_BATCHES = 16;
+
+    private static final ByteBuffer END = ByteBuffer.allocate(0); // queued by close, stops the writer thread
+    private static final ByteBuffer SYNC = ByteBuffer.allocate(0); // queued by sync, takes the next listener
+
+    /**
+     * told on the writer thread once the bytes written before a sync have been forced to the disk
+     */
+    public interface SyncListener {
+        /**
+         * @param bytes bytes written to the file so far, after inflating
+         * @param crc CRC-32 of those bytes, 0 unless checksums are enabled
+         * @throws IOException
+         */
+        void synced(long bytes, long crc) throws IOException;
+    }
+
+    private final GatheringByteChannel channel; // a FileChannel unless given by the caller
+    private final BlockingQueue<ByteBuffer> free; // empty batches
+    private final BlockingQueue<ByteBuffer> filled; // batches waiting to be written, in order
+    private final Executor executor; // null if the stream has a writer thread of its own
+    private final AtomicBoolean scheduled = new AtomicBoolean(); // executor only, a task is writing the queue
+    private final CountDownLatch done = new CountDownLatch(1); // counted down once END is written
+    private long position; // positional writes only, file offset of the next batch, or -1 to write sequentially
+    private Inflater inflater; // set before the first write, only used by the writer thread after that
+    private ByteBuffer inflated;
+    private CRC32 crc; // set before the first write, only used by the writer thread after that
+    private long written; // writer thread only until it ends, bytes that reached the file
+    private final Queue<SyncListener> syncListeners = new ConcurrentLinkedQueue<>();
+    // writer thread only, taken from filled and not written yet
+    private final List<ByteBuffer> queued = new ArrayList<>();
+    private final List<ByteBuffer> batches = new ArrayList<>();
+
+    private ByteBuffer current; // batch being filled by the caller
+    private boolean submitted;
+    private volatile IOException failure;
+    private boolean closed;
+
+    public AsyncChannelWriter(String fileName) throws IOException {
+        this(fileName, -1, DEFAULT_BATCH_SIZE, DEFAULT_BATCHES);
+    }
+
+    /**
+     * writes into an existing file from the given offset with positional writes, without truncating it, so that
+     * several writers, possibly in other processes, can fill disjoint ranges of the same file
+     * @param fileName output file, created if missing
+     * @param position file offset of the first byte written
+     * @throws IOException
+     */
+    public AsyncChannelWriter(String fileName, long position) throws IOException {
+        this(fileName, position, DEFAULT_BATCH_SIZE, DEFAULT_BATCHES);
+    }
+
+    public AsyncChannelWriter(String fileName, long position, int batchSize, int batches) throws IOException {
+        this(fileName, position, batchSize, batches, null);
+    }
+
+    /**
+     * @param executor runs the writes instead of a thread of the stream's own, or null. It must not be the thread
+     *                 that writes to the stream, which waits for the executor while all batches are in flight
+     */
+    public AsyncChannelWriter(String fileName, long position, int batchSize, int batches, Executor executor)
+            throws IOException {
+        this(openFile(fileName, position), position, batchSize, batches, executor);
+    }
+
+    /**
+     * writes sequentially to a channel that is not necessarily a file, which is closed with the stream. Syncing only
+     * forces the data to the disk if it is a FileChannel
+     * @param channel output channel
+     */
+    public AsyncChannelWriter(GatheringByteChannel channel, int batchSize, int batches) {
+        this(channel, -1, batchSize, batches, null);
+    }
+
+    private AsyncChannelWriter(GatheringByteChannel channel, long position, int batchSize, int batches,
+                               Executor executor) {
+        this.channel = channel;
+        this.position = position;
+        this.executor = executor;
+
+        free = new ArrayBlockingQueue<>(batches);
+        filled = new ArrayBlockingQueue<>(batches + 2);
+        for (int i = 1; i < batches; i++) {
+            free.add(ByteBuffer.allocate(batchSize));
+        }
+        current = ByteBuffer.allocate(batchSize);
+
+        if (executor == null) new Thread(this::writeBatches, "output-writer").start();
+    }
+
+    private static FileChannel openFile(String fileName, long position) throws IOException {
+        if (position < 0) {
+            return FileChannel.open(Paths.get(fileName),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        }
+        return FileChannel.open(Paths.get(fileName), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+    }
+
+    /**
+     * decompresses everything written to this stream, which must be a zlib stream, with an Inflater on the writer
+     * thread before it reaches the file
+     * @throws IllegalStateException if something has already been written
+     */
+    public void enableInflate() {
+        if (inflater != null) return;
+        if (current.position() > 0 || submitted) {
+            throw new IllegalStateException("Inflate enabled after the first write");
+        }
+        inflater = new Inflater();
+        inflated = ByteBuffer.allocate(current.capacity());
+    }
+
+    /**
+     * keeps a CRC-32 of the bytes that reach the file, after inflating
+     * @throws IllegalStateException if something has already been written
+     */
+    public void enableChecksum() {
+        if (crc != null) return;
+        if (current.position() > 0 || submitted) {
+            throw new IllegalStateException("Checksum enabled after the first write");
+        }
+        crc = new CRC32();
+    }
+
+    /**
+     * @return CRC-32 of the bytes written to the file, valid once the stream is closed
+     */
+    public long getChecksum() {
+        return crc != null ? crc.getValue() : 0;
+    }
+
+    /**
+     * @return number of bytes written to the file, valid once the stream is closed
+     */
+    public long getBytesWritten() {
+        return written;
+    }
+
+    /**
+     * hands the current batch to the writer thread and has it force everything written so far to the disk and
+     * then tell the listener, without waiting for either
+     * @param listener called on the writer thread
+     * @throws IOException
+     */
+    public void sync(SyncListener listener) throws IOException {
+        flush();
+        syncListeners.add(listener);
+        queue(SYNC);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (!current.hasRemaining()) submit();
+        current.put((byte) b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (!current.hasRemaining()) submit();
+
+            int n = Math.min(len, current.remaining());
+            current.put(b, off, n);
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * hands the current batch to the writer thread without waiting for it to reach the disk
+     * @throws IOException
+     */
+    @Override
+    public void flush() throws IOException {
+        if (current.position() > 0) submit();
+    }
+
+    /**
+     * writes all remaining batches and closes the channel
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+
+        flush();
+        try {
+            queue(END);
+            done.await();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        } finally {
+            channel.close();
+        }
+        checkFailure();
+    }
+
+    private void submit() throws IOException {
+        checkFailure();
+        current.flip();
+        submitted = true;
+        queue(current);
+        try {
+            current = free.take();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+    }
+
+    /**
+     * hands a batch or a marker to the writer thread, and with an executor starts a task unless one is running
+     * @param buf batch, END or SYNC
+     * @throws IOException
+     */
+    private void queue(ByteBuffer buf) throws IOException {
+        try {
+            filled.put(buf);
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+        if (executor != null && scheduled.compareAndSet(false, true)) executor.execute(this::writeQueued);
+    }
+
+    private void checkFailure() throws IOException {
+        if (failure != null) throw new IOException("Asynchronous write failed", failure);
+    }
+
+    /**
+     * own writer thread, writes queued batches in order until END is taken
+     */
+    private void writeBatches() {
+        try {
+            boolean end = false;
+            while (!end) {
+                queued.add(filled.take());
+                filled.drainTo(queued);
+                end = writeAll();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            finish();
+        }
+    }
+
+    /**
+     * executor task, writes the batches queued so far, one task per stream at a time, which the scheduled flag
+     * guards
+     */
+    private void writeQueued() {
+        do {
+            filled.drainTo(queued);
+            writeAll();
+            scheduled.set(false);
+            // a batch queued after the drain but before the flag was cleared would otherwise wait
+        } while (!filled.isEmpty() && scheduled.compareAndSet(false, true));
+    }
+
+    /**
+     * writer thread only, writes the queued batches up to each marker, then acts on the marker. After a failure the
+     * batches are only handed back, so that the caller sees the failure instead of blocking
+     * @return true once END has been taken
+     */
+    private boolean writeAll() {
+        boolean end = false;
+        for (ByteBuffer buf : queued) {
+            if (buf != END && buf != SYNC) {
+                batches.add(buf);
+                continue;
+            }
+
+            writeBatchList();
+            if (buf == SYNC) {
+                SyncListener listener = syncListeners.remove();
+                try {
+                    if (failure == null) {
+                        if (channel instanceof FileChannel) ((FileChannel) channel).force(false);
+                        listener.synced(written, getChecksum());
+                    }
+                } catch (IOException e) {
+                    failure = e;
+                }
+            } else {
+                end = true;
+            }
+        }
+        writeBatchList();
+        queued.clear();
+
+        if (end) {
+            if (failure == null && inflater != null && !inflater.finished()) {
+                failure = new IOException("Compressed stream ended early");
+            }
+            finish();
+        }
+        return end;
+    }
+
+    private void finish() {
+        if (inflater != null) inflater.end();
+        done.countDown();
+    }
+
+    /**
+     * writer thread only, writes the batches in order unless a write has failed, and hands them back to the caller
+     */
+    private void writeBatchList() {
+        if (batches.isEmpty()) return;
+
+        try {
+            if (failure == null) write(batches);
+        } catch (IOException e) {
+            failure = e;
+        }
+
+        for (ByteBuffer batch : batches) {
+            batch.clear();
+            free.add(batch);
+        }
+        batches.clear();
+    }
+
+    /**
+     * writer thread only, writes the batches in order
+     * @param batches batches to write
+     * @throws IOException
+     */
+    private void write(List<ByteBuffer> batches) throws IOException {
+        if (inflater != null) {
+            for (ByteBuffer batch : batches) {
+                inflate(batch);
+            }
+        } else if (position < 0) {
+            for (ByteBuffer batch : batches) {
+                count(batch);
+            }
+            ByteBuffer[] srcs = batches.toArray(new ByteBuffer[0]);
+            while (srcs[srcs.length - 1].hasRemaining()) {
+                channel.write(srcs);
+            }
+        } else {
+            // there is no positional gathering write, so write batch by batch
+            for (ByteBuffer batch : batches) {
+                count(batch);
+                writeFully(batch);
+            }
+        }
+    }
+
+    /**
+     * writer thread only, adds bytes that are about to be written to the count and the checksum
+     * @param buf bytes to write, left unchanged
+     */
+    private void count(ByteBuffer buf) {
+        written += buf.remaining();
+        if (crc != null) crc.update(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+    }
+
+    /**
+     * writer thread only, inflates a batch and writes the output. Bytes after the end of the zlib stream are ignored
+     * @param batch compressed bytes
+     * @throws IOException
+     */
+    private void inflate(ByteBuffer batch) throws IOException {
+        inflater.setInput(batch.array(), batch.position(), batch.remaining());
+        try {
+            // a full output buffer may leave output pending inside the inflater even once all input is taken
+            while (!inflater.finished()) {
+                int n = inflater.inflate(inflated.array());
+                if (n == 0) {
+                    if (inflater.needsInput()) break;
+                    throw new IOException("Invalid compressed data");
+                }
+                inflated.clear().limit(n);
+                count(inflated);
+                writeFully(inflated);
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Invalid compressed data", e);
+        }
+    }
+
+    /**
+     * writer thread only, writes all remaining bytes of buf at the current position
+     * @param buf bytes to write
+     * @throws IOException
+     */
+    private void writeFully(ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            if (position < 0) {
+                channel.write(buf);
+            } else {
+                position += ((FileChannel) channel).write(buf, position);
+            }
+        }
+    }
+}
@@ -0,0 +1,154 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * checkpoint of a resumable transfer, kept next to the output file as <output>.ckpt: the length of the prefix of the
+ * output that is known to be on the disk, and the CRC-32 of that prefix, as "<offset> <crc>". A restarted sender
+ * continues from the offset, and the CRC-32 of the rest of the file is combined with the prefix's so that the whole
+ * file can be checked without reading it back
+ */
+public class Checkpoint {
+
+    private static final String SUFFIX = ".ckpt";
+    private static final int READ_SIZE = 1 << 20;
+
+    private final Path path;
+    private long offset;
+    private long crc;
+
+    /**
+     * loads the checkpoint of an output file, or starts from 0 if there is none or the output is shorter than it
+     * @param fileName output file
+     * @throws IOException if the checkpoint cannot be read
+     */
+    public Checkpoint(String fileName) throws IOException {
+        path = Paths.get(fileName + SUFFIX);
+        if (!Files.exists(path)) return;
+
+        String[] fields = new String(Files.readAllBytes(path), StandardCharsets.UTF_8).trim().split(" ");
+        try {
+            long savedOffset = Long.parseLong(fields[0]);
+            long savedCrc = Long.parseLong(fields[1], 16);
+            Path output = Paths.get(fileName);
+            if (Files.exists(output) && Files.size(output) >= savedOffset) {
+                offset = savedOffset;
+                crc = savedCrc;
+            }
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            throw new IOException("Invalid checkpoint " + path, e);
+        }
+    }
+
+    public synchronized long getOffset() {
+        return offset;
+    }
+
+    public synchronized long getCrc() {
+        return crc;
+    }
+
+    /**
+     * replaces the checkpoint file in one atomic rename, so that a crash leaves either the old or the new one
+     * @param offset length of the prefix that is on the disk
+     * @param crc CRC-32 of the prefix
+     * @throws IOException
+     */
+    public synchronized void save(long offset, long crc) throws IOException {
+        this.offset = offset;
+        this.crc = crc;
+
+        Path tmp = Paths.get(path + ".tmp");
+        Files.write(tmp, (offset + " " + Long.toHexString(crc) + "\n").getBytes(StandardCharsets.UTF_8));
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * removes the checkpoint once the transfer is complete, or starts over from 0 after it failed
+     * @throws IOException
+     */
+    public synchronized void delete() throws IOException {
+        offset = 0;
+        crc = 0;
+        Files.deleteIfExists(path);
+    }
+
+    /**
+     * @param fileName file
+     * @return CRC-32 of the whole file
+     * @throws IOException
+     */
+    public static long crc32(String fileName) throws IOException {
+        CRC32 crc = new CRC32();
+        ByteBuffer buf = ByteBuffer.allocate(READ_SIZE);
+        try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+            while (channel.read(buf) >= 0) {
+                buf.flip();
+                crc.update(buf);
+                buf.clear();
+            }
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * CRC-32 of two byte sequences one after the other from the CRC-32 of each, like zlib's crc32_combine: the
+     * first CRC is advanced over length2 zero bytes by repeated squaring of the operator that advances it by one
+     * bit, in GF(2)
+     * @param crc1 CRC-32 of the first sequence
+     * @param crc2 CRC-32 of the second sequence
+     * @param length2 length of the second sequence
+     * @return CRC-32 of both
+     */
+    public static long combine(long crc1, long crc2, long length2) {
+        if (length2 <= 0) return crc1;
+
+        long[] even = new long[32]; // operator for 2^n zero bits, n even
+        long[] odd = new long[32];
+
+        // operator for one zero bit
+        odd[0] = 0xedb88320L;
+        long row = 1;
+        for (int n = 1; n < 32; n++) {
+            odd[n] = row;
+            row <<= 1;
+        }
+        square(even, odd); // two zero bits
+        square(odd, even); // four zero bits
+
+        // the first square gives the operator for one zero byte
+        do {
+            square(even, odd);
+            if ((length2 & 1) != 0) crc1 = times(even, crc1);
+            length2 >>= 1;
+            if (length2 == 0) break;
+
+            square(odd, even);
+            if ((length2 & 1) != 0) crc1 = times(odd, crc1);
+            length2 >>= 1;
+        } while (length2 != 0);
+
+        return crc1 ^ crc2;
+    }
+
+    private static long times(long[] matrix, long vector) {
+        long sum = 0;
+        for (int i = 0; vector != 0; i++, vector >>>= 1) {
+            if ((vector & 1) != 0) sum ^= matrix[i];
+        }
+        return sum;
+    }
+
+    private static void square(long[] square, long[] matrix) {
+        for (int n = 0; n < 32; n++) {
+            square[n] = times(matrix, matrix[n]);
+        }
+    }
+}
@@ -0,0 +1,69 @@
+/**
+ * congestion window in packets with slow start, congestion avoidance and multiplicative decrease, in the style of
+ * TCP Reno
+ */
+public class CongestionControl {
+
+    private static final double MIN_SSTHRESH = 2;
+
+    private final int maxWindow;
+
+    private double cwnd;
+    private double ssthresh;
+
+    /**
+     * @param initialWindow congestion window to slow start from
+     * @param maxWindow upper bound of the window, i.e. the receiver's capacity
+     */
+    public CongestionControl(int initialWindow, int maxWindow) {
+        this.maxWindow = maxWindow;
+        this.cwnd = Math.min(initialWindow, maxWindow);
+        this.ssthresh = maxWindow;
+    }
+
+    /**
+     * grows the window by one packet per acked packet in slow start, and by one packet per window otherwise
+     * @param newlyAcked number of packets acked for the first time
+     */
+    public void onAck(int newlyAcked) {
+        for (int i = 0; i < newlyAcked; i++) {
+            if (cwnd < ssthresh) {
+                cwnd += 1;
+            } else {
+                cwnd += 1 / cwnd;
+            }
+        }
+        cwnd = Math.min(cwnd, maxWindow);
+    }
+
+    /**
+     * halves the window after a loss signalled by duplicate acks
+     */
+    public void onDupAcks() {
+        ssthresh = Math.max(cwnd / 2, MIN_SSTHRESH);
+        cwnd = ssthresh;
+    }
+
+    /**
+     * collapses the window to one packet and slow starts again after a retransmission timeout
+     */
+    public void onTimeout() {
+        ssthresh = Math.max(cwnd / 2, MIN_SSTHRESH);
+        cwnd = 1;
+    }
+
+    /**
+     * @return number of packets that may be outstanding
+     */
+    public int getWindow() {
+        return Math.max(1, Math.min(maxWindow, (int) cwnd));
+    }
+
+    public double getCwnd() {
+        return cwnd;
+    }
+
+    public double getSsthresh() {
+        return ssthresh;
+    }
+}
@@ -0,0 +1,122 @@
+import java.io.IOException;
+
+/**
+ * timer service without a thread of its own, for an event loop that waits on {@link #millisUntilNext()} and then calls
+ * {@link #expire()}. Deadlines live in an indexed binary min-heap over the keys, so arming, cancelling and finding the
+ * next deadline never allocate and cost at most O(log keys)
+ */
+public class DeadlineTimerService implements TimerService {
+
+    private final Object lock;
+    private final Handler handler;
+
+    private final long[] deadlines; // indexed by key, in System.nanoTime() units
+    private final int[] heap; // keys ordered by deadline
+    private final int[] heapPos; // indexed by key, position in heap or -1 if not armed
+    private int size;
+
+    public DeadlineTimerService(int keys, Object lock, Handler handler) {
+        this.lock = lock;
+        this.handler = handler;
+        this.deadlines = new long[keys];
+        this.heap = new int[keys];
+        this.heapPos = new int[keys];
+        for (int i = 0; i < keys; i++) {
+            heapPos[i] = -1;
+        }
+    }
+
+    @Override
+    public void arm(int key, long delayMs) {
+        cancel(key);
+        deadlines[key] = System.nanoTime() + delayMs * 1000000;
+        heap[size] = key;
+        heapPos[key] = size;
+        size++;
+        siftUp(heapPos[key]);
+    }
+
+    @Override
+    public void cancel(int key) {
+        int pos = heapPos[key];
+        if (pos < 0) return;
+
+        size--;
+        heapPos[key] = -1;
+        if (pos == size) return;
+
+        // move the last key into the hole and restore the heap in whichever direction it is out of order
+        int last = heap[size];
+        heap[pos] = last;
+        heapPos[last] = pos;
+        siftDown(pos);
+        siftUp(heapPos[last]);
+    }
+
+    @Override
+    public void cancelAll() {
+        for (int i = 0; i < size; i++) {
+            heapPos[heap[i]] = -1;
+        }
+        size = 0;
+    }
+
+    @Override
+    public void shutdown() {
+        cancelAll();
+    }
+
+    /**
+     * @return milliseconds until the earliest deadline rounded up, 0 if it has passed, or -1 if nothing is armed
+     */
+    public long millisUntilNext() {
+        if (size == 0) return -1;
+
+        long nanos = deadlines[heap[0]] - System.nanoTime();
+        return nanos <= 0 ? 0 : (nanos + 999999) / 1000000;
+    }
+
+    /**
+     * runs the handler, with the lock held, for every deadline that has passed
+     * @throws IOException
+     */
+    public void expire() throws IOException {
+        long now = System.nanoTime();
+        synchronized (lock) {
+            while (size > 0 && deadlines[heap[0]] - now <= 0) {
+                int key = heap[0];
+                cancel(key);
+                handler.onTimeout(key);
+            }
+        }
+    }
+
+    private void siftUp(int pos) {
+        int key = heap[pos];
+        while (pos > 0) {
+            int parent = (pos - 1) / 2;
+            if (deadlines[heap[parent]] - deadlines[key] <= 0) break;
+            place(heap[parent], pos);
+            pos = parent;
+        }
+        place(key, pos);
+    }
+
+    private void siftDown(int pos) {
+        int key = heap[pos];
+        while (true) {
+            int child = 2 * pos + 1;
+            if (child >= size) break;
+            if (child + 1 < size && deadlines[heap[child + 1]] - deadlines[heap[child]] < 0) child++;
+            if (deadlines[key] - deadlines[heap[child]] <= 0) break;
+            place(heap[child], pos);
+            pos = child;
+        }
+        place(key, pos);
+    }
+
+    private void place(int key, int pos) {
+        heap[pos] = key;
+        heapPos[key] = pos;
+    }
+}
@@ -0,0 +1,384 @@
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * network emulator between Sender and Receiver, a portable replacement for nEmulator-linux386 that takes the same
+ * arguments. Each direction is a link that drops, duplicates, delays and reorders datagrams at random and can be
+ * limited to a bandwidth with a drop tail queue:
+ *
+ *     java Emulator <forward port> <receiver host> <receiver port> <backward port> <sender host> <sender port>
+ *                   <max delay ms> <loss probability> <verbose 0|1> [options]
+ *
+ * Like nEmulator, every datagram is delayed by a uniform random time up to the max delay, which reorders
+ * datagrams closer together than that. With --ports=N it relays N consecutive port pairs over the same two links,
+ * port + i to port + i, for the stripes of a striped transfer. It can also run inside another program, see
+ * {@link Goodput}
+ */
+public class Emulator implements AutoCloseable {
+
+    private static final int MAX_DATAGRAM = 64 * 1024;
+
+    private final Link forward;
+    private final Link backward;
+
+    /**
+     * link settings shared by both directions
+     */
+    public static class Config {
+        int maxDelay; // ms, uniform random delay on top of delay
+        double loss;
+        boolean verbose;
+        int delay; // ms, fixed propagation delay
+        double reorder; // probability of holding a datagram back reorderDelay more
+        int reorderDelay = 10; // ms
+        double duplicate; // probability of delivering a datagram twice
+        int rate; // kbit/s, 0 for unlimited
+        int queue = 100; // datagrams of the largest size seen that may wait for the link before it drops
+        int mtu; // largest IP packet the link carries, larger datagrams are dropped, 0 for any size
+        int ports = 1; // consecutive port pairs relayed over the links, e.g. one per stripe
+        int dropEot; // number of EOTs dropped on each link before any is let through
+        long seed = System.nanoTime();
+
+        /**
+         * @param args options after the positional arguments
+         * @param offset index of the first option
+         * @throws Exception if an option is invalid
+         */
+        void parseOptions(String[] args, int offset) throws Exception {
+            Options options = new Options(args, offset);
+            delay = options.getInt("delay", delay);
+            reorder = getProbability(options, "reorder", reorder);
+            reorderDelay = options.getInt("reorder-delay", reorderDelay);
+            duplicate = getProbability(options, "duplicate", duplicate);
+            rate = options.getInt("rate", rate);
+            queue = options.getInt("queue", queue);
+            mtu = options.getInt("mtu", mtu);
+            ports = options.getInt("ports", ports);
+            dropEot = options.getInt("drop-eot", dropEot);
+            if (options.has("seed")) seed = options.getInt("seed", 0);
+            if (delay < 0 || reorderDelay < 0 || rate < 0 || queue < 1 || mtu < 0 || ports < 1 || dropEot < 0) {
+                throw new Exception("Invalid emulator option");
+            }
+        }
+
+        private static double getProbability(Options options, String name, double defaultValue) throws Exception {
+            String value = options.getString(name, null);
+            if (value == null) return defaultValue;
+            try {
+                double p = Double.parseDouble(value);
+                if (p < 0 || p > 1) throw new Exception("Invalid input for --" + name);
+                return p;
+            } catch (NumberFormatException e) {
+                throw new Exception("Invalid input type for --" + name, e);
+            }
+        }
+    }
+
+    /**
+     * @param forwardPort first port receiving from the sender, 0 for any free port
+     * @param receiver address datagrams from the sender are delivered to, its port is the first of the range
+     * @param backwardPort first port receiving from the receiver, 0 for any free port
+     * @param sender address datagrams from the receiver are delivered to, its port is the first of the range
+     * @param config link settings
+     * @throws IOException if a port cannot be bound
+     */
+    public Emulator(int forwardPort, InetSocketAddress receiver, int backwardPort, InetSocketAddress sender,
+                    Config config) throws IOException {
+        Random random = new Random(config.seed);
+        forward = new Link("forward", forwardPort, receiver, config, new Random(random.nextLong()));
+        try {
+            backward = new Link("backward", backwardPort, sender, config, new Random(random.nextLong()));
+        } catch (IOException e) {
+            forward.close();
+            throw e;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 9) {
+            throw new Exception("Invalid number of input arguments");
+        }
+
+        int forwardPort = parsePort(args, 0);
+        InetSocketAddress receiver = new InetSocketAddress(InetAddress.getByName(args[1]), parsePort(args, 2));
+        int backwardPort = parsePort(args, 3);
+        InetSocketAddress sender = new InetSocketAddress(InetAddress.getByName(args[4]), parsePort(args, 5));
+
+        Config config = new Config();
+        try {
+            config.maxDelay = Integer.parseInt(args[6]);
+            config.loss = Double.parseDouble(args[7]);
+            config.verbose = Integer.parseInt(args[8]) != 0;
+        } catch (NumberFormatException e) {
+            throw new Exception("Invalid input type for the link arguments", e);
+        }
+        if (config.maxDelay < 0 || config.loss < 0 || config.loss > 1) {
+            throw new Exception("Invalid link arguments");
+        }
+        config.parseOptions(args, 9);
+
+        Emulator emulator = new Emulator(forwardPort, receiver, backwardPort, sender, config);
+        emulator.start();
+        emulator.join();
+    }
+
+    private static int parsePort(String[] args, int idx) throws Exception {
+        try {
+            return Integer.parseInt(args[idx]);
+        } catch (NumberFormatException e) {
+            throw new Exception("Invalid input type for args[" + idx + "]", e);
+        }
+    }
+
+    /**
+     * starts relaying in both directions on background threads
+     */
+    public void start() {
+        forward.start();
+        backward.start();
+    }
+
+    /**
+     * waits until the emulator is closed
+     * @throws InterruptedException
+     */
+    public void join() throws InterruptedException {
+        forward.join();
+        backward.join();
+    }
+
+    /**
+     * @return first port receiving from the sender
+     */
+    public int getForwardPort() {
+        return forward.sockets[0].getLocalPort();
+    }
+
+    /**
+     * @return first port receiving from the receiver
+     */
+    public int getBackwardPort() {
+        return backward.sockets[0].getLocalPort();
+    }
+
+    /**
+     * @return "<received> <dropped> <queue drops> <duplicated> <delivered>" of the forward then the backward link
+     */
+    public String summary() {
+        return forward.summary() + " " + backward.summary();
+    }
+
+    @Override
+    public void close() {
+        forward.close();
+        backward.close();
+    }
+
+    /**
+     * one direction: a thread per port receives datagrams and decides their fate, and one more thread delivers
+     * them from a delay queue once their time has come. All ports share the link's rate and queue
+     */
+    private static final class Link {
+
+        private final String name;
+        private final DatagramSocket[] sockets; // receive, and send the delivered datagrams, by port index
+        private final InetSocketAddress[] destinations; // by port index
+        private final Config config;
+        private final DelayQueue<Scheduled> queue = new DelayQueue<>();
+        private final Thread[] receiveThreads;
+        private final Thread deliverThread;
+
+        // guarded by the link, which every receive thread locks while handling a datagram
+        private final Random random;
+        private long linkFreeAt; // nanoTime at which the link has sent everything queued
+        private long order; // breaks ties between datagrams due at the same time
+        private int largestDatagram = PacketCodec.MAX_UDP_LENGTH;
+        private final PacketCodec.Header header = new PacketCodec.Header();
+        private int eotsDropped;
+
+        private final AtomicLong received = new AtomicLong();
+        private final AtomicLong dropped = new AtomicLong();
+        private final AtomicLong queueDrops = new AtomicLong();
+        private final AtomicLong duplicated = new AtomicLong();
+        private final AtomicLong delivered = new AtomicLong();
+
+        /**
+         * @param port first port to receive on, 0 for any free port, the others follow it
+         * @param destination address of the first port's datagrams, the others go to the ports following it
+         */
+        Link(String name, int port, InetSocketAddress destination, Config config, Random random) throws IOException {
+            this.name = name;
+            this.config = config;
+            this.random = random;
+
+            sockets = new DatagramSocket[config.ports];
+            destinations = new InetSocketAddress[config.ports];
+            receiveThreads = new Thread[config.ports];
+            try {
+                for (int i = 0; i < config.ports; i++) {
+                    sockets[i] = new DatagramSocket(i == 0 ? port : sockets[0].getLocalPort() + i);
+                }
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+            for (int i = 0; i < config.ports; i++) {
+                destinations[i] = new InetSocketAddress(destination.getAddress(), destination.getPort() + i);
+                final int index = i;
+                receiveThreads[i] = new Thread(() -> receive(index), "emulator-" + name + "-receive-" + i);
+                receiveThreads[i].setDaemon(true);
+            }
+            deliverThread = new Thread(this::deliver, "emulator-" + name + "-deliver");
+            deliverThread.setDaemon(true);
+        }
+
+        void start() {
+            for (Thread thread : receiveThreads) {
+                thread.start();
+            }
+            deliverThread.start();
+        }
+
+        void join() throws InterruptedException {
+            for (Thread thread : receiveThreads) {
+                thread.join();
+            }
+        }
+
+        void close() {
+            for (DatagramSocket socket : sockets) {
+                if (socket != null) socket.close();
+            }
+            if (deliverThread != null) deliverThread.interrupt();
+        }
+
+        String summary() {
+            return received.get() + " " + dropped.get() + " " + queueDrops.get() + " " + duplicated.get() + " "
+                    + delivered.get();
+        }
+
+        private void receive(int index) {
+            byte[] buf = new byte[MAX_DATAGRAM];
+            DatagramPacket dp = new DatagramPacket(buf, buf.length);
+            try {
+                while (true) {
+                    dp.setLength(buf.length);
+                    sockets[index].receive(dp);
+                    received.incrementAndGet();
+                    handle(buf, dp.getLength(), index);
+                }
+            } catch (IOException e) {
+                // closed
+            }
+        }
+
+        /**
+         * drops the datagram, or schedules its delivery, twice if it is duplicated
+         * @param index index of the port it was received on
+         */
+        private synchronized void handle(byte[] buf, int length, int index) {
+            // like a datagram sent with don't fragment over a link with a smaller MTU
+            if (config.mtu > 0 && length + PacketCodec.IP_UDP_OVERHEAD > config.mtu) {
+                dropped.incrementAndGet();
+                log("dropping (larger than the MTU)", length);
+                return;
+            }
+            if (random.nextDouble() < config.loss) {
+                dropped.incrementAndGet();
+                log("dropping", length);
+                return;
+            }
+            // the end of a transfer, whose loss is otherwise rare enough to go untested
+            if (eotsDropped < config.dropEot && PacketCodec.decode(ByteBuffer.wrap(buf), length, header)
+                    && header.type == PacketCodec.TYPE_EOT) {
+                eotsDropped++;
+                dropped.incrementAndGet();
+                log("dropping (EOT)", length);
+                return;
+            }
+
+            // serialization on a link of limited rate, behind the datagrams already waiting for it
+            long now = System.nanoTime();
+            long departure = now;
+            if (config.rate > 0) {
+                largestDatagram = Math.max(largestDatagram, length);
+                long backlog = Math.max(0, linkFreeAt - now);
+                if (backlog > config.queue * transmitNanos(largestDatagram)) {
+                    queueDrops.incrementAndGet();
+                    log("dropping (queue full)", length);
+                    return;
+                }
+                departure = now + backlog + transmitNanos(length);
+                linkFreeAt = departure;
+            }
+
+            int copies = random.nextDouble() < config.duplicate ? 2 : 1;
+            if (copies == 2) duplicated.incrementAndGet();
+            byte[] data = new byte[length];
+            System.arraycopy(buf, 0, data, 0, length);
+            for (int i = 0; i < copies; i++) {
+                long delayMillis = config.delay;
+                if (config.maxDelay > 0) delayMillis += random.nextInt(config.maxDelay + 1);
+                if (random.nextDouble() < config.reorder) delayMillis += config.reorderDelay;
+                queue.add(new Scheduled(data, index, departure + delayMillis * 1000000L, order++));
+            }
+            log("receiving", length);
+        }
+
+        private long transmitNanos(int length) {
+            return length * 8L * 1000000L / config.rate;
+        }
+
+        private void deliver() {
+            try {
+                while (true) {
+                    Scheduled s = queue.take();
+                    sockets[s.index].send(new DatagramPacket(s.data, s.data.length, destinations[s.index]));
+                    delivered.incrementAndGet();
+                    log("sending", s.data.length);
+                }
+            } catch (InterruptedException | IOException e) {
+                // closed
+            }
+        }
+
+        private void log(String event, int length) {
+            if (config.verbose) System.out.println(name + ": " + event + " " + length + " bytes");
+        }
+    }
+
+    private static final class Scheduled implements Delayed {
+        final byte[] data;
+        final int index; // port index
+        final long deliverAt; // nanoTime
+        final long order;
+
+        Scheduled(byte[] data, int index, long deliverAt, long order) {
+            this.data = data;
+            this.index = index;
+            this.deliverAt = deliverAt;
+            this.order = order;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(deliverAt - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed o) {
+            Scheduled other = (Scheduled) o;
+            if (deliverAt != other.deliverAt) return deliverAt - other.deliverAt < 0 ? -1 : 1;
+            return Long.compare(order, other.order);
+        }
+    }
+}
@@ -0,0 +1,104 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * fixed size ring buffer of binary protocol events that keeps the latest capacity of them. Recording claims a slot
+ * with one atomic increment and stores three longs, with no lock, formatting or I/O, so it can stay on in a fast
+ * transfer. The events are written to a file once the writers are done, oldest first, as big-endian records of
+ *
+ *     <long ns since the trace was created> <int event> <int seqnum> <long value>
+ *
+ * which java EventTrace <file> prints as text
+ */
+public class EventTrace {
+
+    public static final int SEND = 1; // value: packets outstanding after the send
+    public static final int RETRANSMIT = 2;
+    public static final int ACK = 3; // value: window advertised by the receiver
+    public static final int DUP_ACK = 4; // value: duplicate acks in a row
+    public static final int TIMEOUT = 5; // value: retransmission timeout in ms after backing off
+    public static final int RTT = 6; // value: round trip time in us
+    public static final int CWND = 7; // value: congestion window in packets
+    public static final int RECEIVE = 8; // value: connection id
+    public static final int ACK_SENT = 9; // value: connection id
+    public static final int EOT = 10; // value: connection id
+
+    private static final String[] NAMES = {"", "send", "retransmit", "ack", "dup-ack", "timeout", "rtt", "cwnd",
+            "receive", "ack-sent", "eot"};
+
+    private final long startTime = System.nanoTime();
+    private final int capacity;
+    private final long[] records; // 3 longs per event: time, event << 32 | seqnum, value
+    private final AtomicLong next = new AtomicLong();
+
+    /**
+     * @param capacity number of events kept
+     */
+    public EventTrace(int capacity) {
+        this.capacity = capacity;
+        this.records = new long[capacity * 3];
+    }
+
+    public void record(int event, int seqNum, long value) {
+        int i = (int) (next.getAndIncrement() % capacity) * 3;
+        records[i] = System.nanoTime() - startTime;
+        records[i + 1] = (long) event << 32 | (seqNum & 0xffffffffL);
+        records[i + 2] = value;
+    }
+
+    /**
+     * @return number of events recorded so far, including those that have been overwritten
+     */
+    public long getRecorded() {
+        return next.get();
+    }
+
+    /**
+     * writes the events that are still in the buffer, oldest first. Events recorded while it runs may be torn
+     * @param fileName trace file
+     * @throws IOException
+     */
+    public void dump(String fileName) throws IOException {
+        long end = next.get();
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fileName)))) {
+            for (long n = Math.max(0, end - capacity); n < end; n++) {
+                int i = (int) (n % capacity) * 3;
+                out.writeLong(records[i]);
+                out.writeLong(records[i + 1]);
+                out.writeLong(records[i + 2]);
+            }
+        }
+    }
+
+    /**
+     * prints a trace file as "<ms> <event> <seqnum> <value>" lines
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            throw new Exception("Invalid number of input arguments");
+        }
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(args[0])))) {
+            while (true) {
+                long time;
+                try {
+                    time = in.readLong();
+                } catch (EOFException e) {
+                    break;
+                }
+                int event = in.readInt();
+                int seqNum = in.readInt();
+                long value = in.readLong();
+                String name = event > 0 && event < NAMES.length ? NAMES[event] : Integer.toString(event);
+                System.out.printf("%.3f %s %d %d%n", time / 1e6, name, seqNum, value);
+            }
+        }
+    }
+}
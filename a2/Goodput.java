@@ -0,0 +1,288 @@
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * runs Sender and Receiver through an {@link Emulator} in this JVM over a matrix of loss probabilities, max delays
+ * and option sets, and reports the completion time and goodput of every transfer:
+ *
+ *     java Goodput [--file=<file>] [--loss=p,p,...] [--max-delay=ms,ms,...]
+ *                  [--variants="<sender options>|<receiver options>;..."] [--repeat=N] [--timeout=s] [--csv=file]
+ *                  [emulator options]
+ *
+ * Sender and Receiver run as child processes, since their state is static, each transfer in its own temporary
+ * directory. Times are taken from the start of the Sender process to its exit, so they include its JVM start-up.
+ * A variant with --stripes=N gets N consecutive ports on every side, which the emulator relays over the same links.
+ * It fails at the end if any transfer did not complete
+ */
+public class Goodput {
+
+    private static final int DEFAULT_FILE_SIZE = 1 << 20;
+    private static final String DEFAULT_LOSS = "0,0.01,0.05";
+    private static final String DEFAULT_MAX_DELAY = "0,5";
+    private static final String DEFAULT_VARIANTS = "|;--mode=sr|--mode=sr;--ext|;--ext --fec=4|";
+    private static final int DEFAULT_TIMEOUT = 120; // s
+    private static final long RECEIVER_START_MILLIS = 500;
+    private static final long SEED = 42;
+
+    private static File file;
+    private static double[] losses;
+    private static int[] maxDelays;
+    private static String[][] variants; // sender options, receiver options
+    private static int repeat;
+    private static int timeout;
+    private static String csv;
+    private static Emulator.Config config;
+
+    private Goodput() {
+
+    }
+
+    public static void main(String[] args) throws Exception {
+        parseInput(args);
+
+        PrintWriter csvWriter = csv != null ? new PrintWriter(csv, "UTF-8") : null;
+        if (csvWriter != null) {
+            csvWriter.println("loss,max_delay_ms,sender_options,receiver_options,ok,time_ms,goodput_mbps,"
+                    + "datagrams_sent,datagrams_dropped,acks_sent");
+        }
+        System.out.printf("%-6s %-6s %-30s %-10s %10s %14s %10s %10s%n", "loss", "delay", "options", "result",
+                "time ms", "goodput Mb/s", "sent", "acks");
+
+        int failed = 0;
+        try {
+            for (double loss : losses) {
+                for (int maxDelay : maxDelays) {
+                    for (String[] variant : variants) {
+                        for (int i = 0; i < repeat; i++) {
+                            Run run = transfer(loss, maxDelay, variant[0], variant[1]);
+                            if (!run.result.equals("OK")) failed++;
+                            System.out.printf(Locale.ROOT, "%-6s %-6d %-30s %-10s %10d %14.2f %10d %10d%n",
+                                    Double.toString(loss), maxDelay, variant[0], run.result, run.millis,
+                                    run.goodput(), run.stats[0], run.stats[5]);
+                            if (csvWriter != null) {
+                                csvWriter.printf(Locale.ROOT, "%s,%d,%s,%s,%s,%d,%.3f,%d,%d,%d%n", loss, maxDelay,
+                                        variant[0], variant[1], run.result.equals("OK"), run.millis, run.goodput(),
+                                        run.stats[0], run.stats[1] + run.stats[2], run.stats[5]);
+                            }
+                        }
+                    }
+                }
+            }
+        } finally {
+            if (csvWriter != null) csvWriter.close();
+        }
+        // so that a script can tell
+        if (failed > 0) throw new Exception(failed + " transfers did not complete");
+    }
+
+    private static void parseInput(String[] args) throws Exception {
+        Options options = new Options(args, 0);
+
+        String fileName = options.getString("file", null);
+        file = fileName != null ? new File(fileName) : testFile();
+        if (!file.isFile()) throw new Exception("Invalid input for --file");
+
+        String[] lossValues = options.getString("loss", DEFAULT_LOSS).split(",");
+        losses = new double[lossValues.length];
+        String[] delayValues = options.getString("max-delay", DEFAULT_MAX_DELAY).split(",");
+        maxDelays = new int[delayValues.length];
+        try {
+            for (int i = 0; i < lossValues.length; i++) losses[i] = Double.parseDouble(lossValues[i].trim());
+            for (int i = 0; i < delayValues.length; i++) maxDelays[i] = Integer.parseInt(delayValues[i].trim());
+        } catch (NumberFormatException e) {
+            throw new Exception("Invalid input type for --loss or --max-delay", e);
+        }
+
+        String[] variantValues = options.getString("variants", DEFAULT_VARIANTS).split(";");
+        variants = new String[variantValues.length][];
+        for (int i = 0; i < variantValues.length; i++) {
+            String value = variantValues[i];
+            int bar = value.indexOf('|');
+            variants[i] = bar < 0
+                    ? new String[]{value.trim(), ""}
+                    : new String[]{value.substring(0, bar).trim(), value.substring(bar + 1).trim()};
+        }
+
+        repeat = options.getInt("repeat", 1);
+        timeout = options.getInt("timeout", DEFAULT_TIMEOUT);
+        if (repeat < 1 || timeout < 1) throw new Exception("Invalid input for --repeat or --timeout");
+        csv = options.getString("csv", null);
+
+        // the remaining options set up the emulator's links
+        config = new Emulator.Config();
+        config.parseOptions(args, 0);
+        if (!options.has("seed")) config.seed = SEED;
+    }
+
+    /**
+     * result of one transfer
+     */
+    private static final class Run {
+        String result;
+        long millis;
+        long[] stats = new long[10]; // Emulator.summary()
+
+        double goodput() {
+            return result.equals("OK") ? file.length() * 8 / (millis * 1000.0) : 0;
+        }
+    }
+
+    /**
+     * transfers the file once through a new emulator
+     * @param loss loss probability of both links
+     * @param maxDelay max random delay of both links in ms
+     * @param senderOptions Sender options, separated by spaces
+     * @param receiverOptions Receiver options, separated by spaces
+     * @return outcome
+     * @throws Exception if a process cannot be started
+     */
+    private static Run transfer(double loss, int maxDelay, String senderOptions, String receiverOptions)
+            throws Exception {
+        config.loss = loss;
+        config.maxDelay = maxDelay;
+        config.ports = stripes(senderOptions);
+        config.seed++;
+
+        File dir = Files.createTempDirectory("goodput").toFile();
+        File output = new File(dir, "output");
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+        int receivePort = freePorts(config.ports);
+        int sendPort = freePorts(config.ports);
+
+        Run run = new Run();
+        Process receiver = null;
+        Process sender = null;
+        try (Emulator emulator = new Emulator(freePorts(config.ports), new InetSocketAddress(loopback, receivePort),
+                freePorts(config.ports), new InetSocketAddress(loopback, sendPort), config)) {
+            emulator.start();
+
+            receiver = start(dir, "receiver", "Receiver", loopback.getHostAddress(),
+                    emulator.getBackwardPort(), receivePort, output.getPath(), receiverOptions);
+            Thread.sleep(RECEIVER_START_MILLIS);
+
+            long start = System.nanoTime();
+            sender = start(dir, "sender", "Sender", loopback.getHostAddress(),
+                    emulator.getForwardPort(), sendPort, file.getAbsolutePath(), senderOptions);
+            boolean done = sender.waitFor(timeout, TimeUnit.SECONDS);
+            run.millis = (System.nanoTime() - start) / 1000000;
+            if (done) done = receiver.waitFor(Math.max(1, timeout - run.millis / 1000), TimeUnit.SECONDS);
+
+            String[] summary = emulator.summary().split(" ");
+            for (int i = 0; i < summary.length; i++) run.stats[i] = Long.parseLong(summary[i]);
+
+            if (!done) {
+                run.result = "TIMEOUT";
+            } else if (sender.exitValue() != 0 || receiver.exitValue() != 0) {
+                run.result = "FAILED";
+            } else {
+                run.result = sameContent(file, output) ? "OK" : "MISMATCH";
+            }
+        } finally {
+            if (sender != null) sender.destroyForcibly();
+            if (receiver != null) receiver.destroyForcibly();
+        }
+
+        if (run.result.equals("OK")) {
+            deleteTree(dir);
+        } else {
+            System.err.println("Logs of the failed transfer are in " + dir);
+        }
+        return run;
+    }
+
+    private static Process start(File dir, String name, String mainClass, String host, int sendPort,
+                                 int receivePort, String fileName, String options) throws IOException {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        List<String> command = new ArrayList<>(Arrays.asList(java, "-cp",
+                new File(System.getProperty("java.class.path")).getAbsolutePath(), mainClass, host,
+                Integer.toString(sendPort), Integer.toString(receivePort), fileName));
+        for (String option : options.split(" ")) {
+            if (!option.isEmpty()) command.add(option);
+        }
+        return new ProcessBuilder(command).directory(dir).redirectErrorStream(true)
+                .redirectOutput(new File(dir, name + ".out")).start();
+    }
+
+    /**
+     * @param options Sender options, separated by spaces
+     * @return number of stripes, each of which uses a port pair of its own
+     */
+    private static int stripes(String options) throws Exception {
+        for (String option : options.split(" ")) {
+            if (option.startsWith("--stripes=")) return new Options(new String[]{option}, 0).getInt("stripes", 1);
+        }
+        return 1;
+    }
+
+    /**
+     * @param count number of consecutive ports
+     * @return first of count consecutive UDP ports that were free a moment ago
+     */
+    private static int freePorts(int count) throws IOException {
+        while (true) {
+            DatagramSocket[] sockets = new DatagramSocket[count];
+            try {
+                sockets[0] = new DatagramSocket(0);
+                int first = sockets[0].getLocalPort();
+                for (int i = 1; i < count; i++) {
+                    sockets[i] = new DatagramSocket(first + i);
+                }
+                return first;
+            } catch (SocketException e) {
+                // one of the following ports is taken, try another range
+            } finally {
+                for (DatagramSocket socket : sockets) {
+                    if (socket != null) socket.close();
+                }
+            }
+        }
+    }
+
+    private static boolean sameContent(File a, File b) throws IOException {
+        if (a.length() != b.length()) return false;
+
+        try (InputStream in1 = new BufferedInputStream(new FileInputStream(a));
+             InputStream in2 = new BufferedInputStream(new FileInputStream(b))) {
+            int c;
+            while ((c = in1.read()) != -1) {
+                if (c != in2.read()) return false;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * @return DEFAULT_FILE_SIZE random bytes, the same on every run
+     */
+    private static File testFile() throws IOException {
+        byte[] data = new byte[DEFAULT_FILE_SIZE];
+        new Random(SEED).nextBytes(data);
+        File testFile = File.createTempFile("goodput", ".bin");
+        testFile.deleteOnExit();
+        Files.write(testFile.toPath(), data);
+        return testFile;
+    }
+
+    private static void deleteTree(File f) {
+        File[] children = f.listFiles();
+        if (children != null) {
+            for (File child : children) deleteTree(child);
+        }
+        f.delete();
+    }
+}
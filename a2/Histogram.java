@@ -0,0 +1,70 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * lock-free histogram of non-negative values in power of two buckets: bucket 0 counts 0 and bucket b counts values
+ * from 2^(b-1) to 2^b - 1. Recording is a few atomic increments, so any number of threads may record while others
+ * read. Percentiles are the upper bound of their bucket, so they are off by less than a factor of 2
+ */
+public class Histogram {
+
+    private static final int BUCKETS = 65;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * @param value value to count, negative values count as 0
+     */
+    public void record(long value) {
+        value = Math.max(0, value);
+        counts.incrementAndGet(64 - Long.numberOfLeadingZeros(value));
+        count.increment();
+        sum.add(value);
+
+        long m = max.get();
+        while (value > m && !max.compareAndSet(m, value)) {
+            m = max.get();
+        }
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * @return mean of the recorded values, 0 if there are none
+     */
+    public double getMean() {
+        long n = count.sum();
+        return n == 0 ? 0 : (double) sum.sum() / n;
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * @param p percentile from 0 to 100
+     * @return upper bound of the bucket that holds the percentile, 0 if nothing has been recorded
+     */
+    public long getPercentile(double p) {
+        long total = 0;
+        for (int b = 0; b < BUCKETS; b++) total += counts.get(b);
+        if (total == 0) return 0;
+
+        long rank = (long) Math.ceil(total * p / 100);
+        long seen = 0;
+        for (int b = 0; b < BUCKETS; b++) {
+            seen += counts.get(b);
+            if (seen >= rank && seen > 0) {
+                long upper = b == 0 ? 0 : b == 64 ? Long.MAX_VALUE : (1L << b) - 1;
+                return Math.min(max.get(), upper);
+            }
+        }
+        return max.get();
+    }
+}
@@ -0,0 +1,105 @@
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * maps the file into memory and encodes any packet on demand from its slice of the mapping, so the file is never
+ * decoded or copied onto the heap. Like {@link StreamingPacketSource} only the last {@code capacity} datagrams are
+ * kept, in a ring of reused buffers
+ */
+public class MappedPacketSource implements PacketSource {
+
+    private final FileChannel channel;
+    private final long rangeSize;
+    private final int dataSize;
+    private final boolean extended;
+    private final int connId;
+    private final int packetCount;
+    // a single mapping is limited to 2GB, so larger files are mapped in segments of as many whole packets as fit
+    private final int segmentPackets;
+
+    private final ByteBuffer[] segments; // views of the mapped segments, position and limit set per packet
+
+    // indexed by packet index % capacity
+    private final ByteBuffer[] ring;
+    private final DatagramPacket[] datagrams;
+    private final int[] ringIdx; // packet index currently encoded in each slot, -1 if none
+
+    /**
+     * @param offset start of the byte range to send
+     * @param length length of the range, clamped to the end of the file
+     * @param connId connection id carried by every packet, 0 for none
+     */
+    public MappedPacketSource(String fileName, long offset, long length, int capacity, int dataSize,
+                              boolean extended, int connId, InetAddress hostIa, int port) throws IOException {
+        this.channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ);
+        this.rangeSize = Math.max(0, Math.min(length, channel.size() - offset));
+        this.dataSize = dataSize;
+        this.extended = extended;
+        this.connId = connId;
+
+        long count = (rangeSize + dataSize - 1) / dataSize;
+        if (count > Integer.MAX_VALUE) {
+            channel.close();
+            throw new IOException("File too large: " + fileName);
+        }
+        this.packetCount = (int) count;
+
+        segmentPackets = Integer.MAX_VALUE / dataSize;
+        long segmentSize = (long) segmentPackets * dataSize;
+        segments = new ByteBuffer[(int) ((rangeSize + segmentSize - 1) / segmentSize)];
+        for (int i = 0; i < segments.length; i++) {
+            long start = i * segmentSize;
+            MappedByteBuffer mapping = channel.map(FileChannel.MapMode.READ_ONLY, offset + start,
+                    Math.min(segmentSize, rangeSize - start));
+            segments[i] = mapping.duplicate();
+        }
+
+        ring = new ByteBuffer[capacity];
+        datagrams = new DatagramPacket[capacity];
+        ringIdx = new int[capacity];
+        int udpLength = PacketCodec.headerLength(extended, connId) + dataSize;
+        for (int i = 0; i < capacity; i++) {
+            ring[i] = ByteBuffer.allocate(udpLength);
+            datagrams[i] = new DatagramPacket(ring[i].array(), udpLength, hostIa, port);
+            ringIdx[i] = -1;
+        }
+    }
+
+    @Override
+    public synchronized DatagramPacket get(int idx) throws IOException {
+        if (idx >= packetCount) return null;
+
+        int slot = idx % ring.length;
+        if (ringIdx[slot] != idx) {
+            encode(idx, slot);
+        }
+        return datagrams[slot];
+    }
+
+    private void encode(int idx, int slot) {
+        ByteBuffer segment = segments[idx / segmentPackets];
+        int offset = (int) ((long) (idx % segmentPackets) * dataSize);
+        int length = (int) Math.min(dataSize, rangeSize - (long) idx * dataSize);
+        segment.limit(offset + length).position(offset);
+
+        // copy the slice straight behind the header
+        ByteBuffer buf = ring[slot];
+        buf.clear().position(PacketCodec.headerLength(extended, connId));
+        buf.put(segment);
+
+        int udpLength = PacketCodec.encodeHeader(buf, PacketCodec.TYPE_DATA, idx, length, extended, 0, connId);
+        datagrams[slot].setLength(udpLength);
+        ringIdx[slot] = idx;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
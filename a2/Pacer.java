@@ -0,0 +1,87 @@
+/**
+ * spaces sends at least interval nanoseconds apart and counts the bursts and gaps between the datagrams that are
+ * actually sent. The timers that release held back packets have millisecond granularity, so a sender that was held
+ * back or woke up late may catch up on at most one QUANTUM of sends at once. With an interval of 0 nothing is held
+ * back and only the counters are kept
+ */
+public class Pacer {
+
+    private static final long QUANTUM = 1000000;
+    // sends closer together than this are counted as one burst
+    private static final long BURST_GAP = 100000;
+
+    private long interval;
+    private long nextSendTime; // earliest time of the next send
+
+    private long packets;
+    private long bursts;
+    private int burstSize;
+    private int maxBurstSize;
+    private long lastSendTime;
+    private long totalGap;
+    private long minGap = Long.MAX_VALUE;
+    private long maxGap;
+
+    /**
+     * @param interval nanoseconds between two sends, 0 to not pace
+     */
+    public synchronized void setInterval(long interval) {
+        this.interval = interval;
+    }
+
+    /**
+     * takes the next send slot if it has come
+     * @param now System.nanoTime()
+     * @return false if the send has to wait {@link #millisUntilNext(long)}
+     */
+    public synchronized boolean tryAcquire(long now) {
+        if (interval <= 0) return true;
+        if (now - nextSendTime < 0) return false;
+
+        nextSendTime = Math.max(nextSendTime, now - QUANTUM) + interval;
+        return true;
+    }
+
+    /**
+     * @param now System.nanoTime()
+     * @return milliseconds until the next send slot, at least 1
+     */
+    public synchronized long millisUntilNext(long now) {
+        return Math.max(1, (nextSendTime - now + 999999) / 1000000);
+    }
+
+    /**
+     * counts a datagram that has been sent
+     * @param now System.nanoTime()
+     */
+    public synchronized void recordSend(long now) {
+        if (packets > 0) {
+            long gap = now - lastSendTime;
+            totalGap += gap;
+            minGap = Math.min(minGap, gap);
+            maxGap = Math.max(maxGap, gap);
+            if (gap >= BURST_GAP) burstSize = 0;
+        }
+        if (burstSize == 0) bursts++;
+        burstSize++;
+        maxBurstSize = Math.max(maxBurstSize, burstSize);
+
+        packets++;
+        lastSendTime = now;
+    }
+
+    /**
+     * @return "<packets> <bursts> <mean burst> <max burst> <mean gap us> <min gap us> <max gap us>"
+     */
+    public synchronized String summary() {
+        if (packets == 0) return "0 0 0.00 0 0.0 0.0 0.0";
+        return String.format("%d %d %.2f %d %.1f %.1f %.1f",
+                packets,
+                bursts,
+                (double) packets / bursts,
+                maxBurstSize,
+                packets > 1 ? totalGap / 1e3 / (packets - 1) : 0.0,
+                packets > 1 ? minGap / 1e3 : 0.0,
+                maxGap / 1e3);
+    }
+}
@@ -0,0 +1,168 @@
+import java.nio.ByteBuffer;
+
+/**
+ * binary safe, allocation free encoder and decoder of the packet wire format. Unlike {@link packet}, which keeps its
+ * payload in a String, it works on caller supplied buffers that are reused for every datagram, with the header at
+ * index 0 and the data right after it.
+ *
+ * legacy header: type, seqnum % 32, length
+ * extended header: type | EXT_FLAG [| COMPRESSED_FLAG] [| FEC_FLAG] [| CONN_FLAG] [| PAYLOAD_FLAG], seqnum, length,
+ * window [, connection id if CONN_FLAG]
+ * all fields are big-endian ints, followed by length bytes of data, at most MAX_DATA_LENGTH unless a longer length
+ * has been negotiated
+ */
+public final class PacketCodec {
+
+    public static final int TYPE_ACK = 0;
+    public static final int TYPE_DATA = 1;
+    public static final int TYPE_EOT = 2;
+    // extended header only, opens a transfer and negotiates its options, answered with a SYN
+    public static final int TYPE_SYN = 3;
+    public static final int TYPE_PARITY = 4;
+    // extended header only, asks the receiver for the offset to resume a transfer from, answered with 8 bytes of it
+    public static final int TYPE_RESUME = 5;
+    // extended header only, probes the path with a datagram of seqnum data bytes, echoed without the data
+    public static final int TYPE_PROBE = 6;
+    // the type field carries it in the extended header, whose seqnum is a full 32-bit packet index and which
+    // advertises a receive window in packets after the length
+    public static final int EXT_FLAG = 0x100;
+    // extended header only, on a SYN it offers or accepts compression, on data it marks deflated stream bytes
+    public static final int COMPRESSED_FLAG = 0x200;
+    // extended header only, on a SYN it offers or accepts parity packets for groups of seqnum data packets
+    public static final int FEC_FLAG = 0x400;
+    // extended header only, a connection id follows the window so that one receiver can tell transfers apart
+    public static final int CONN_FLAG = 0x800;
+    // extended header only, on a SYN it offers or accepts data packets longer than MAX_DATA_LENGTH, up to the data
+    // length in its last 4 bytes of data
+    public static final int PAYLOAD_FLAG = 0x1000;
+    private static final int FLAGS = EXT_FLAG | COMPRESSED_FLAG | FEC_FLAG | CONN_FLAG | PAYLOAD_FLAG;
+
+    public static final int HEADER_LENGTH = 12;
+    public static final int EXT_HEADER_LENGTH = 16;
+    public static final int MAX_DATA_LENGTH = 500;
+    public static final int CONN_HEADER_LENGTH = 20;
+    public static final int MAX_UDP_LENGTH = CONN_HEADER_LENGTH + MAX_DATA_LENGTH;
+    // largest UDP payload over IPv4, and the longest data that fits it behind any header, if negotiated
+    public static final int MAX_UDP_PAYLOAD = 65507;
+    public static final int MAX_JUMBO_DATA_LENGTH = MAX_UDP_PAYLOAD - CONN_HEADER_LENGTH;
+    // IPv4 and UDP headers, which count towards the MTU of a link
+    public static final int IP_UDP_OVERHEAD = 28;
+
+    private static final int SeqNumModulo = 32;
+
+    private PacketCodec() {
+
+    }
+
+    /**
+     * decoded header of a datagram, reused across receives
+     */
+    public static class Header {
+        int type;
+        int seqNum;
+        int length; // number of data bytes
+        int window;
+        boolean extended;
+        boolean compressed;
+        boolean fec;
+        boolean payload;
+        int connId; // 0 if the header has none
+        int dataOffset; // index of the first data byte in the datagram
+    }
+
+    public static int headerLength(boolean extended) {
+        return extended ? EXT_HEADER_LENGTH : HEADER_LENGTH;
+    }
+
+    /**
+     * @param connId connection id, 0 for none. Only the extended header can carry one
+     */
+    public static int headerLength(boolean extended, int connId) {
+        return extended && connId != 0 ? CONN_HEADER_LENGTH : headerLength(extended);
+    }
+
+    /**
+     * writes a header at the start of buf, for data that is already in place right after it
+     * @param buf array backed datagram buffer
+     * @param type packet type
+     * @param seqNum packet index, reduced modulo 32 for the legacy header
+     * @param length number of data bytes following the header
+     * @param extended true for the extended header
+     * @param window advertised receive window, only sent with the extended header
+     * @return datagram length
+     */
+    public static int encodeHeader(ByteBuffer buf, int type, int seqNum, int length, boolean extended, int window) {
+        return encodeHeader(buf, type, seqNum, length, extended, window, 0);
+    }
+
+    /**
+     * @param connId connection id, 0 for none, ignored by the legacy header
+     */
+    public static int encodeHeader(ByteBuffer buf, int type, int seqNum, int length, boolean extended, int window,
+                                   int connId) {
+        boolean conn = extended && connId != 0;
+        if (extended) type |= EXT_FLAG;
+        if (conn) type |= CONN_FLAG;
+        buf.putInt(0, type);
+        buf.putInt(4, extended ? seqNum : seqNum % SeqNumModulo);
+        buf.putInt(8, length);
+        if (extended) buf.putInt(12, window);
+        if (conn) buf.putInt(16, connId);
+        return headerLength(extended, connId) + length;
+    }
+
+    /**
+     * writes a header and copies the remaining bytes of data after it
+     * @param buf array backed datagram buffer
+     * @param data data bytes, consumed up to its limit, or null for none
+     * @return datagram length
+     */
+    public static int encode(ByteBuffer buf, int type, int seqNum, boolean extended, int window, ByteBuffer data) {
+        return encode(buf, type, seqNum, extended, window, 0, data);
+    }
+
+    /**
+     * @param connId connection id, 0 for none
+     */
+    public static int encode(ByteBuffer buf, int type, int seqNum, boolean extended, int window, int connId,
+                             ByteBuffer data) {
+        int length = 0;
+        if (data != null) {
+            length = data.remaining();
+            if (length > MAX_DATA_LENGTH) {
+                throw new IllegalArgumentException("data too large (max " + MAX_DATA_LENGTH + " bytes)");
+            }
+            buf.position(headerLength(extended, connId));
+            buf.put(data);
+            buf.position(0);
+        }
+        return encodeHeader(buf, type, seqNum, length, extended, window, connId);
+    }
+
+    /**
+     * reads the header of a received datagram, the data is left in place at header.dataOffset
+     * @param buf array backed datagram buffer
+     * @param udpLength number of bytes received
+     * @param header header to fill
+     * @return false if the datagram is too short for the header and length it claims
+     */
+    public static boolean decode(ByteBuffer buf, int udpLength, Header header) {
+        if (udpLength < HEADER_LENGTH) return false;
+
+        int type = buf.getInt(0);
+        header.extended = (type & EXT_FLAG) != 0;
+        header.compressed = header.extended && (type & COMPRESSED_FLAG) != 0;
+        header.fec = header.extended && (type & FEC_FLAG) != 0;
+        header.payload = header.extended && (type & PAYLOAD_FLAG) != 0;
+        boolean conn = header.extended && (type & CONN_FLAG) != 0;
+        header.type = type & ~FLAGS;
+        header.seqNum = buf.getInt(4);
+        header.length = buf.getInt(8);
+        header.dataOffset = conn ? CONN_HEADER_LENGTH : headerLength(header.extended);
+        if (udpLength < header.dataOffset) return false;
+        header.window = header.extended ? buf.getInt(12) : 0;
+        header.connId = conn ? buf.getInt(16) : 0;
+
+        return header.length >= 0 && header.length <= udpLength - header.dataOffset;
+    }
+}
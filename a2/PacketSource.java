@@ -0,0 +1,48 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * supplies the encoded datagrams of the file being sent, by packet index
+ */
+public interface PacketSource extends Closeable {
+
+    /**
+     * @param idx packet index
+     * @return datagram of the packet, or null if idx is past the end of the file
+     * @throws IOException
+     */
+    DatagramPacket get(int idx) throws IOException;
+
+    /**
+     * @return false while more packets may follow the ones get returns so far, e.g. for a source that is written to
+     * while the transfer runs
+     */
+    default boolean isComplete() {
+        return true;
+    }
+
+    @Override
+    default void close() throws IOException {
+
+    }
+
+    /**
+     * reads until buf is full or the channel ends
+     * @param channel file channel
+     * @param buf destination, filled from its position to its limit
+     * @return number of bytes read, less than requested only at the end of the channel
+     * @throws IOException
+     */
+    static int readChunk(ReadableByteChannel channel, ByteBuffer buf) throws IOException {
+        int total = 0;
+        while (buf.hasRemaining()) {
+            int n = channel.read(buf);
+            if (n == -1) break;
+            total += n;
+        }
+        return total;
+    }
+}
@@ -0,0 +1,133 @@
+import java.util.Arrays;
+
+/**
+ * receiver side of forward error correction. Keeps, for the most recent groups of groupSize packets, the xor of
+ * every data and parity packet of the group received so far. Once the parity of a group has arrived and only one of
+ * its data packets is missing, that packet is the accumulated xor
+ */
+public class ParityDecoder {
+
+    private final int groupSize;
+
+    // indexed by group % number of slots
+    private final byte[][] xor;
+    private final int[] group; // group held by each slot, -1 if none
+    private final int[] members; // data and parity packets xored in so far
+    private final int[] packets; // data packets in the group, -1 until its parity arrives
+    private final int[] lengths; // xor of the data lengths
+
+    /**
+     * @param groupSize data packets per parity packet
+     * @param window largest number of packets in flight, which bounds the number of groups in flight
+     * @param maxLength longest data of a packet
+     */
+    public ParityDecoder(int groupSize, int window, int maxLength) {
+        int slots = window / groupSize + 2;
+        this.groupSize = groupSize;
+        this.xor = new byte[slots][maxLength];
+        this.group = new int[slots];
+        this.members = new int[slots];
+        this.packets = new int[slots];
+        this.lengths = new int[slots];
+        Arrays.fill(group, -1);
+    }
+
+    public int getGroupSize() {
+        return groupSize;
+    }
+
+    /**
+     * @param idx packet index
+     * @return group of the packet
+     */
+    public int groupOf(int idx) {
+        return idx / groupSize;
+    }
+
+    /**
+     * xors in a data packet, which must not have been added before
+     * @param idx packet index
+     */
+    public void addData(int idx, byte[] data, int offset, int length) {
+        int slot = slotFor(groupOf(idx));
+        if (slot < 0) return;
+
+        xorInto(slot, data, offset, length);
+        lengths[slot] ^= length;
+        members[slot]++;
+    }
+
+    /**
+     * xors in a parity packet, a duplicate is ignored
+     * @param start index of the first packet of the group
+     * @param window window field of the parity packet, "packets << 16 | xor of data lengths"
+     */
+    public void addParity(int start, int window, byte[] data, int offset, int length) {
+        int slot = slotFor(groupOf(start));
+        if (slot < 0 || packets[slot] >= 0) return;
+
+        xorInto(slot, data, offset, length);
+        lengths[slot] ^= window & 0xffff;
+        packets[slot] = window >>> 16;
+        members[slot]++;
+    }
+
+    /**
+     * @param g group
+     * @return number of data packets in the group, or -1 if its parity has not arrived
+     */
+    public int packetsOf(int g) {
+        int slot = g % group.length;
+        return group[slot] == g ? packets[slot] : -1;
+    }
+
+    /**
+     * @param g group
+     * @return true if the parity has arrived and exactly one data packet is missing
+     */
+    public boolean canRebuild(int g) {
+        int slot = g % group.length;
+        return group[slot] == g && packets[slot] >= 0 && members[slot] == packets[slot]
+                && lengths[slot] <= xor[slot].length;
+    }
+
+    /**
+     * rebuilds the missing packet of a group, after which the group is complete
+     * @param g group for which canRebuild is true
+     * @param dest destination of the data
+     * @param offset index of the first data byte in dest
+     * @return data length of the rebuilt packet
+     */
+    public int rebuild(int g, byte[] dest, int offset) {
+        int slot = g % group.length;
+        int length = lengths[slot];
+        System.arraycopy(xor[slot], 0, dest, offset, length);
+        members[slot]++;
+        return length;
+    }
+
+    /**
+     * @param g group
+     * @return slot of the group, reset if it held an older group, or -1 if it already holds a newer one
+     */
+    private int slotFor(int g) {
+        int slot = g % group.length;
+        if (group[slot] > g) return -1;
+
+        if (group[slot] < g) {
+            Arrays.fill(xor[slot], (byte) 0);
+            group[slot] = g;
+            members[slot] = 0;
+            packets[slot] = -1;
+            lengths[slot] = 0;
+        }
+        return slot;
+    }
+
+    private void xorInto(int slot, byte[] data, int offset, int length) {
+        byte[] acc = xor[slot];
+        for (int i = 0; i < length; i++) {
+            acc[i] ^= data[offset + i];
+        }
+    }
+}
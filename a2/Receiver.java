@@ -3,22 +3,53 @@ import java.io.PrintWriter;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
-import java.net.SocketException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 
 public class Receiver {
 
     private static final String LOG_FILE_ARRIVE = "arrival.log";
+    private static final String LOG_FILE_METRICS = "receiver-metrics.log";
+    private static final String LOG_FILE_TRACE = "receiver-trace.bin";
+    private static final int DEFAULT_TRACE_RECORDS = 65536;
 
-    private static final int PACKET_DATA_SIZE = 500;
-    private static final int PACKET_SIZE = 512;
-    private static final int WINDOW_SIZE = 10;
-    private static final int SeqNumModulo = 32;
+    private static final String MODE_GBN = "gbn";
+    private static final String MODE_SR = "sr";
 
-    private static PrintWriter arriveWriter, outputWriter;
+    // receive window advertised to senders that negotiate the extended header
+    private static final int DEFAULT_EXT_WINDOW = 4096;
+
+    private static final int DEFAULT_ACK_DELAY = 2;
+
+    // asked of the OS for the receiving socket, which needs room for a window of long datagrams
+    private static final int SOCKET_BUFFER_SIZE = 4 * 1024 * 1024;
+
+    // time without datagrams after the EOT until the receiver is sure the sender has its reply, like TCP's
+    // TIME-WAIT
+    private static final int LINGER = 2000; // ms
 
     private static int sendPort;
     private static int receivePort;
     private static String fileName;
+    private static boolean selectiveRepeat;
+    private static int extWindow;
+    private static int ackEvery;
+    private static int ackDelay;
+    private static int stripes;
+    private static int stripe = -1; // striped transfers only, the output is opened once the SYN gives the offset
+    private static boolean server;
+    private static int threads;
+    private static boolean log; // arrival log
+    private static int traceRecords; // 0 if there is no event trace
+    private static boolean resume; // keep a checkpoint that a restarted sender can resume from
+    private static int maxPayload; // longest data of a packet a sender may negotiate
+
+    private static ReceiverSession session;
+    private static TransferMetrics metrics;
 
     private static InetAddress hostIa;
 
@@ -32,21 +63,33 @@ public class Receiver {
         // parse input and do error check
         parseInput(args);
 
-        // init file writer
-        initFile();
+        // run one child receiver per stripe, each writing its own range of the output file
+        if (stripes > 1 && stripe < 0) {
+            FileChannel.open(Paths.get(fileName), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING).close();
+            Stripes.run("Receiver", args, stripes);
+            return;
+        }
+
+        // serve any number of transfers told apart by their connection id
+        if (server) {
+            new ReceiverServer(receivePort, fileName, selectiveRepeat, extWindow, ackEvery, ackDelay, threads, log,
+                    traceRecords, maxPayload).run();
+            return;
+        }
 
-        // init udp sockets
-        initUdp();
+        // init file writer and udp sockets
+        initSession();
 
-        // wait for packets and close sockets upon receiving EOT
+        // wait for packets and close sockets upon receiving EOT, which also closes the files
         waitPackets();
 
-        // close writer
-        closeFile();
+        // write the transfer's figures
+        closeMetrics();
     }
 
     private static void parseInput(String[] args) throws Exception {
-        if (args.length != 4) {
+        if (args.length < 4) {
             throw new Exception("Invalid number of input arguments");
         }
 
@@ -66,78 +109,127 @@ public class Receiver {
         }
 
         fileName = args[3];
-    }
 
-    private static void initFile() throws IOException {
-        arriveWriter = new PrintWriter(LOG_FILE_ARRIVE, "UTF-8");
-        outputWriter = new PrintWriter(fileName, "UTF-8");
+        Options options = new Options(args, 4);
+        String mode = options.getString("mode", MODE_GBN);
+        if (mode.equals(MODE_SR)) {
+            selectiveRepeat = true;
+        } else if (!mode.equals(MODE_GBN)) {
+            throw new Exception("Invalid mode " + mode);
+        }
+
+        extWindow = options.getInt("window", DEFAULT_EXT_WINDOW);
+        if (extWindow < 1) throw new Exception("Invalid input for --window");
+
+        ackEvery = options.getInt("ack-every", 1);
+        if (ackEvery < 1) throw new Exception("Invalid input for --ack-every");
+        ackDelay = options.getInt("ack-delay", DEFAULT_ACK_DELAY);
+        if (ackDelay < 1) throw new Exception("Invalid input for --ack-delay");
+
+        stripes = options.getInt("stripes", 1);
+        if (stripes < 1) throw new Exception("Invalid input for --stripes");
+        if (options.has("stripe")) {
+            int[] stripeOption = Stripes.parse(options.getString("stripe", ""));
+            stripe = stripeOption[0];
+            stripes = stripeOption[1];
+        }
+
+        server = options.has("server");
+        threads = options.getInt("threads", Runtime.getRuntime().availableProcessors());
+        if (threads < 1) throw new Exception("Invalid input for --threads");
+        if (server && (stripes > 1 || stripe >= 0)) throw new Exception("--server does not support --stripes");
+
+        resume = options.has("resume");
+        if (resume && (server || stripes > 1 || stripe >= 0)) {
+            throw new Exception("--resume does not support --server or --stripes");
+        }
+
+        maxPayload = options.getInt("max-payload", PacketCodec.MAX_JUMBO_DATA_LENGTH);
+        if (maxPayload < PacketCodec.MAX_DATA_LENGTH || maxPayload > PacketCodec.MAX_JUMBO_DATA_LENGTH) {
+            throw new Exception("Invalid input for --max-payload");
+        }
+
+        log = options.has("log");
+        if (options.has("trace")) {
+            traceRecords = options.getInt("trace", DEFAULT_TRACE_RECORDS);
+            if (traceRecords < 1) throw new Exception("Invalid input for --trace");
+        }
     }
 
-    private static void initUdp() throws SocketException {
-        sendSocket = new DatagramSocket();
+    private static void initSession() throws Exception {
         receiveSocket = new DatagramSocket(receivePort);
+        if (maxPayload > PacketCodec.MAX_DATA_LENGTH) receiveSocket.setReceiveBufferSize(SOCKET_BUFFER_SIZE);
+        sendSocket = new DatagramSocket();
+        session = new ReceiverSession(fileName, log ? Stripes.logName(LOG_FILE_ARRIVE, stripe) : null, stripe >= 0,
+                selectiveRepeat, extWindow, ackEvery, ackDelay, sendSocket, new InetSocketAddress(hostIa, sendPort),
+                AsyncChannelWriter.DEFAULT_BATCH_SIZE, AsyncChannelWriter.DEFAULT_BATCHES,
+                resume ? new Checkpoint(fileName) : null);
+
+        metrics = new TransferMetrics(traceRecords);
+        metrics.register("Receiver", stripe >= 0 ? Integer.toString(stripe) : null);
+        session.setMetrics(metrics);
+        session.setMaxDataLength(maxPayload);
+    }
+
+    private static void closeMetrics() throws IOException {
+        try (PrintWriter metricsWriter = new PrintWriter(Stripes.logName(LOG_FILE_METRICS, stripe), "UTF-8")) {
+            metricsWriter.println(metrics.summary());
+        }
+        if (traceRecords > 0) metrics.dumpTrace(Stripes.logName(LOG_FILE_TRACE, stripe));
     }
 
     private static void waitPackets() throws Exception {
-        int waitingSeqNum = 0;
-        boolean receivedPkt0 = false; // if received first packet
-
-        while (true) {
-            // wait for packet
-            byte[] receiveBuffer = new byte[PACKET_SIZE];
-            DatagramPacket receiveDp = new DatagramPacket(receiveBuffer, PACKET_SIZE);
-            receiveSocket.receive(receiveDp);
-            packet p = packet.parseUDPdata(receiveDp.getData());
-
-            if (p.getType() == 1) { // if regular packet
-                // get seqNum and audit
-                int seqNum = p.getSeqNum();
-                arriveWriter.println(seqNum);
-
-                // update flag
-                if (seqNum == 0) receivedPkt0 = true;
-
-                // compute ack
-                int ack;
-                if (seqNum == waitingSeqNum) { // if order is correct
-                    // set ack and increment waitingSeqNum
-                    ack = seqNum;
-                    waitingSeqNum++;
-                    waitingSeqNum %= SeqNumModulo;
-
-                    // write packet to output file
-                    outputWriter.print(new String(p.getData()));
-                } else { // otherwise ack last in order seqNum
-                    ack = (waitingSeqNum + SeqNumModulo - 1) % SeqNumModulo;
-                }
+        ByteBuffer receiveBuffer = ByteBuffer.allocate(PacketCodec.MAX_UDP_LENGTH);
+        DatagramPacket receiveDp = new DatagramPacket(receiveBuffer.array(), receiveBuffer.capacity());
 
-                // only send back ack when pkt0 has been received
-                if (receivedPkt0) {
-                    byte[] udpBytes = packet.createACK(ack).getUDPdata();
-                    sendSocket.send(new DatagramPacket(udpBytes, udpBytes.length, hostIa, sendPort));
+        try {
+            while (!session.isFinished()) {
+                // wait for packet, or until a delayed ack is due
+                receiveDp.setData(receiveBuffer.array());
+                try {
+                    receiveSocket.setSoTimeout(session.hasPendingAck() ? millisUntil(session.getAckDeadline()) : 0);
+                    receiveSocket.receive(receiveDp);
+                } catch (SocketTimeoutException e) {
+                    session.onAckTimer();
+                    continue;
                 }
-            } else if (p.getType() == 2) { // if eot
-                // get seqNum and audit
-                int seqNum = p.getSeqNum();
-                arriveWriter.println(seqNum);
-
-                // send a eot packet back
-                byte[] udpBytes = packet.createEOT(seqNum).getUDPdata();
-                sendSocket.send(new DatagramPacket(udpBytes, udpBytes.length, hostIa, sendPort));
-
-                // close sockets and return
-                sendSocket.close();
-                receiveSocket.close();
-                return;
-            } else {
-                throw new Exception("Received invalid packet");
+                receiveBuffer = session.receive(receiveBuffer, receiveDp.getLength());
+            }
+            linger(receiveSocket, session, receiveBuffer);
+        } finally {
+            // close sockets
+            sendSocket.close();
+            receiveSocket.close();
+        }
+    }
+
+    /**
+     * answers the EOTs of a sender whose EOT reply was lost until nothing has arrived for LINGER, so that the sender
+     * does not fail a transfer that is complete
+     * @param socket socket the session receives on
+     * @param session finished session
+     * @param receiveBuffer buffer returned by the session's last receive
+     * @throws Exception
+     */
+    static void linger(DatagramSocket socket, ReceiverSession session, ByteBuffer receiveBuffer) throws Exception {
+        DatagramPacket receiveDp = new DatagramPacket(receiveBuffer.array(), receiveBuffer.capacity());
+        socket.setSoTimeout(LINGER);
+        try {
+            while (true) {
+                socket.receive(receiveDp);
+                session.receive(receiveBuffer, receiveDp.getLength());
             }
+        } catch (SocketTimeoutException e) {
+            // the sender has its reply
         }
     }
 
-    private static void closeFile() {
-        arriveWriter.close();
-        outputWriter.close();
+    /**
+     * @param deadline System.nanoTime() deadline
+     * @return socket timeout until the deadline, at least 1 ms since 0 means no timeout
+     */
+    static int millisUntil(long deadline) {
+        return (int) Math.max(1, (deadline - System.nanoTime() + 999999) / 1000000);
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,133 @@
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Pipe;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * receiving side of one transfer as a ReadableByteChannel, the counterpart of {@link SenderChannel} for services that
+ * run many transfers in one JVM. A {@link ReceiverSession} runs on a thread of its own, acking and reordering like the
+ * Receiver, and writes the data in order into a pipe that read drains. read returns -1 once the sender's EOT has been
+ * acked and all data has been read. A reader that falls behind stalls the session, and with it the acks, once the
+ * session's output batches are full, so the sender backs off. Until it is closed, the channel answers retransmitted
+ * EOTs for a while after the end, like the Receiver
+ */
+public class ReceiverChannel implements ReadableByteChannel {
+
+    public static final int DEFAULT_WINDOW = 4096;
+    private static final int DEFAULT_ACK_DELAY = 2;
+
+    private final DatagramSocket socket;
+    private final ReceiverSession session;
+    private final Pipe.SourceChannel source;
+    private final Thread receiverThread;
+    private volatile Exception failure;
+
+    public ReceiverChannel(int receivePort, InetAddress host, int sendPort, boolean selectiveRepeat)
+            throws IOException {
+        this(receivePort, host, sendPort, selectiveRepeat, DEFAULT_WINDOW, 1, DEFAULT_ACK_DELAY);
+    }
+
+    /**
+     * binds the receiving port and starts waiting for the sender's packets
+     * @param receivePort port to receive data on and send acks from
+     * @param host address the acks are sent to, the sender's or the emulator's in front of it
+     * @param sendPort port the acks are sent to
+     * @param window receive window advertised to the sender
+     * @param ackEvery go-back-n only, number of in order packets acked at once
+     * @param ackDelay longest time in ms an in order packet waits for its ack
+     * @throws IOException if the port cannot be bound
+     */
+    public ReceiverChannel(int receivePort, InetAddress host, int sendPort, boolean selectiveRepeat, int window,
+                           int ackEvery, int ackDelay) throws IOException {
+        Pipe pipe = Pipe.open();
+        source = pipe.source();
+        socket = new DatagramSocket(receivePort);
+        session = new ReceiverSession(pipe.sink(), selectiveRepeat, window, ackEvery, ackDelay, socket,
+                new InetSocketAddress(host, sendPort));
+
+        receiverThread = new Thread(this::receivePackets, "receiver-" + socket.getLocalPort());
+        receiverThread.setDaemon(true);
+        receiverThread.start();
+    }
+
+    /**
+     * @return figures of this transfer, which the caller may publish with {@link TransferMetrics#register}
+     */
+    public TransferMetrics getMetrics() {
+        return session.getMetrics();
+    }
+
+    /**
+     * @return local port the channel receives on, e.g. after binding port 0
+     */
+    public int getLocalPort() {
+        return socket.getLocalPort();
+    }
+
+    /**
+     * reads the next received bytes, waiting for the sender if there are none yet
+     * @param dst buffer to read into
+     * @return number of bytes read, or -1 at the end of the transfer
+     * @throws IOException if the transfer failed
+     */
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        int n = source.read(dst);
+        if (n < 0 && failure != null) throw new IOException("Transfer failed", failure);
+        return n;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return source.isOpen();
+    }
+
+    /**
+     * stops receiving, whether or not the transfer is complete
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        source.close();
+        socket.close();
+    }
+
+    /**
+     * receiver thread, runs the session until the EOT has been acked, the transfer fails or the channel is closed
+     */
+    private void receivePackets() {
+        ByteBuffer receiveBuffer = ByteBuffer.allocate(PacketCodec.MAX_UDP_LENGTH);
+        DatagramPacket receiveDp = new DatagramPacket(receiveBuffer.array(), receiveBuffer.capacity());
+
+        try {
+            while (!session.isFinished()) {
+                // wait for packet, or until a delayed ack is due
+                receiveDp.setData(receiveBuffer.array());
+                try {
+                    socket.setSoTimeout(session.hasPendingAck() ? Receiver.millisUntil(session.getAckDeadline()) : 0);
+                    socket.receive(receiveDp);
+                } catch (SocketTimeoutException e) {
+                    session.onAckTimer();
+                    continue;
+                }
+                receiveBuffer = session.receive(receiveBuffer, receiveDp.getLength());
+            }
+            Receiver.linger(socket, session, receiveBuffer);
+        } catch (Exception e) {
+            // closing the channel is not a failure
+            if (source.isOpen()) failure = e;
+            try {
+                // ends the pipe, so that read sees the failure
+                session.close();
+            } catch (IOException ignored) {
+            }
+        } finally {
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,342 @@
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * receives any number of concurrent transfers on one port. Every transfer has its own connection id in the extended
+ * header and its own {@link ReceiverSession}, created by its SYN. The receiving thread only looks up the session and
+ * queues the datagram, and a small pool of worker threads runs the sessions, each session on at most one worker at a
+ * time. Acks are sent from the same socket to the address the transfer's datagrams come from.
+ *
+ * The thread count does not grow with the transfers: the files of all sessions are written by WRITERS shared writer
+ * threads, and one timer thread runs the delayed acks and drops sessions that have been idle for IDLE_TIMEOUT. A
+ * finished transfer's id is remembered for FINISHED_TIMEOUT, so that a late SYN or EOT of it is answered without
+ * reopening, and so truncating, its file
+ */
+public class ReceiverServer {
+
+    private static final String LOG_FILE_ARRIVE = "arrival.log";
+    private static final String LOG_FILE_TRACE = "receiver-trace.bin";
+
+    // output and arrival log batches of a session, smaller than a single transfer's so that hundreds of sessions fit
+    private static final int BATCH_SIZE = 16 * 1024;
+    private static final int BATCHES = 4;
+
+    private static final int WRITERS = 2;
+
+    private static final long IDLE_TIMEOUT = 60000; // ms
+    private static final long IDLE_CHECK_PERIOD = 5000; // ms
+    // longer than a sender usually goes on retransmitting an EOT whose reply is lost
+    private static final long FINISHED_TIMEOUT = 300000; // ms
+    private static final int MAX_FINISHED = 4096;
+
+    private static final int MAX_FREE_BUFFERS = 4096;
+    private static final int MAX_FREE_LONG_BUFFERS = 64;
+
+    // asked of the OS for the receiving socket, which needs room for a window of long datagrams
+    private static final int SOCKET_BUFFER_SIZE = 4 * 1024 * 1024;
+
+    // queued by a session's ack timer and by the idle check in place of a datagram
+    private static final ByteBuffer ACK_TIMER = ByteBuffer.allocate(0);
+    private static final ByteBuffer IDLE_CHECK = ByteBuffer.allocate(0);
+
+    private final int port;
+    private final String fileName;
+    private final boolean selectiveRepeat;
+    private final int extWindow;
+    private final int ackEvery;
+    private final int ackDelay;
+    private final int threads;
+    private final boolean log;
+    private final int traceRecords;
+    private final int maxPayload; // longest data of a packet a sender may negotiate
+    private final int datagramLength; // capacity of the buffers long datagrams are received into
+
+    // shared by all sessions
+    private final TransferMetrics metrics;
+
+    private final ConcurrentHashMap<Integer, Connection> connections = new ConcurrentHashMap<>();
+    // connection id of each transfer finished in the last FINISHED_TIMEOUT, to System.nanoTime() it finished at,
+    // oldest first
+    private final LinkedHashMap<Integer, Long> finished = new LinkedHashMap<>();
+    // buffers of capacity PacketCodec.MAX_UDP_LENGTH, and of datagramLength if longer
+    private final BlockingQueue<ByteBuffer> freeBuffers = new ArrayBlockingQueue<>(MAX_FREE_BUFFERS);
+    private final BlockingQueue<ByteBuffer> freeLongBuffers = new ArrayBlockingQueue<>(MAX_FREE_LONG_BUFFERS);
+
+    private DatagramSocket socket;
+    private ExecutorService workers;
+    private ExecutorService writers;
+    private ScheduledExecutorService timers;
+
+    /**
+     * @param port port to receive all transfers on
+     * @param fileName output file name, transfer n is written to fileName.n and logged to arrival.n.log
+     * @param threads number of worker threads
+     * @param log true to log the arrivals of every transfer
+     * @param traceRecords number of events kept by the event trace of all transfers, which is written to
+     *                     receiver-trace.bin when the JVM exits, 0 for no trace
+     * @param maxPayload longest data of a packet a sender may negotiate
+     */
+    public ReceiverServer(int port, String fileName, boolean selectiveRepeat, int extWindow, int ackEvery,
+                          int ackDelay, int threads, boolean log, int traceRecords, int maxPayload) {
+        this.port = port;
+        this.fileName = fileName;
+        this.selectiveRepeat = selectiveRepeat;
+        this.extWindow = extWindow;
+        this.ackEvery = ackEvery;
+        this.ackDelay = ackDelay;
+        this.threads = threads;
+        this.log = log;
+        this.traceRecords = traceRecords;
+        this.maxPayload = maxPayload;
+        this.datagramLength = PacketCodec.CONN_HEADER_LENGTH + maxPayload;
+        this.metrics = new TransferMetrics(traceRecords);
+    }
+
+    /**
+     * receives and dispatches datagrams until the socket fails, never returns normally
+     * @throws Exception
+     */
+    public void run() throws Exception {
+        metrics.register("ReceiverServer", null);
+        if (traceRecords > 0) {
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    metrics.dumpTrace(LOG_FILE_TRACE);
+                } catch (IOException e) {
+                    System.err.println("Trace: " + e.getMessage());
+                }
+            }));
+        }
+
+        socket = new DatagramSocket(port);
+        if (maxPayload > PacketCodec.MAX_DATA_LENGTH) socket.setReceiveBufferSize(SOCKET_BUFFER_SIZE);
+        workers = Executors.newFixedThreadPool(threads);
+        writers = Executors.newFixedThreadPool(WRITERS);
+        timers = Executors.newSingleThreadScheduledExecutor();
+        timers.scheduleWithFixedDelay(this::checkIdle, IDLE_CHECK_PERIOD, IDLE_CHECK_PERIOD, TimeUnit.MILLISECONDS);
+
+        PacketCodec.Header h = new PacketCodec.Header();
+        ByteBuffer sendBuffer = ByteBuffer.allocate(PacketCodec.CONN_HEADER_LENGTH);
+        DatagramPacket receiveDp = new DatagramPacket(new byte[0], 0);
+        ByteBuffer buf = takeBuffer(datagramLength);
+
+        try {
+            while (true) {
+                receiveDp.setData(buf.array());
+                socket.receive(receiveDp);
+                buf.clear().limit(receiveDp.getLength());
+
+                // datagrams without a connection id cannot be told apart
+                if (!PacketCodec.decode(buf, buf.limit(), h) || h.connId == 0) continue;
+
+                Connection connection = connections.get(h.connId);
+                if (connection == null) {
+                    if (isFinished(h.connId)) {
+                        // a late or duplicated SYN, or an EOT whose reply was lost, of a finished transfer
+                        if (h.type == PacketCodec.TYPE_SYN || h.type == PacketCodec.TYPE_EOT) {
+                            int udpLength = PacketCodec.encodeHeader(sendBuffer, h.type, h.seqNum, 0, true,
+                                    h.type == PacketCodec.TYPE_SYN ? extWindow : 0, h.connId);
+                            socket.send(new DatagramPacket(sendBuffer.array(), udpLength,
+                                    receiveDp.getSocketAddress()));
+                        }
+                        continue;
+                    }
+                    if (h.type != PacketCodec.TYPE_SYN) continue;
+                    connection = open(h.connId, receiveDp.getSocketAddress());
+                    if (connection == null) continue;
+                }
+
+                // most transfers use short packets, which are copied so that sessions do not hold on to long buffers
+                ByteBuffer datagram = buf;
+                if (buf.capacity() > PacketCodec.MAX_UDP_LENGTH && buf.limit() <= PacketCodec.MAX_UDP_LENGTH) {
+                    datagram = takeBuffer(PacketCodec.MAX_UDP_LENGTH);
+                    datagram.put(buf.array(), 0, buf.limit()).flip();
+                } else {
+                    buf = takeBuffer(datagramLength);
+                }
+
+                connection.lastReceived = System.nanoTime();
+                connection.offer(datagram);
+            }
+        } finally {
+            workers.shutdownNow();
+            writers.shutdownNow();
+            timers.shutdownNow();
+            socket.close();
+        }
+    }
+
+    /**
+     * @param capacity PacketCodec.MAX_UDP_LENGTH or datagramLength
+     * @return a free datagram buffer of the given capacity
+     */
+    private ByteBuffer takeBuffer(int capacity) {
+        ByteBuffer buf = capacity > PacketCodec.MAX_UDP_LENGTH ? freeLongBuffers.poll() : freeBuffers.poll();
+        return buf != null ? buf : ByteBuffer.allocate(capacity);
+    }
+
+    /**
+     * keeps a buffer for another datagram if it has one of the two capacities, which also drops the markers
+     * @param buf buffer that is free again
+     */
+    private void recycle(ByteBuffer buf) {
+        buf.clear();
+        if (buf.capacity() == PacketCodec.MAX_UDP_LENGTH) {
+            freeBuffers.offer(buf);
+        } else if (buf.capacity() == datagramLength) {
+            freeLongBuffers.offer(buf);
+        }
+    }
+
+    /**
+     * starts the session of a new transfer
+     * @param connId connection id of the transfer
+     * @param peer address the transfer's datagrams come from
+     * @return the connection, or null if its files could not be opened
+     */
+    private Connection open(int connId, SocketAddress peer) {
+        String id = Integer.toUnsignedString(connId);
+        try {
+            String arrivalLog = log ? LOG_FILE_ARRIVE.replace(".log", "." + id + ".log") : null;
+            ReceiverSession session = new ReceiverSession(fileName + "." + id, arrivalLog, selectiveRepeat,
+                    extWindow, ackEvery, ackDelay, socket, peer, BATCH_SIZE, BATCHES, writers);
+            session.setMetrics(metrics);
+            session.setMaxDataLength(maxPayload);
+            Connection connection = new Connection(connId, session);
+            connections.put(connId, connection);
+            return connection;
+        } catch (IOException e) {
+            System.err.println("Connection " + id + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * remembers a finished transfer for FINISHED_TIMEOUT, up to MAX_FINISHED of them
+     * @param connId connection id of the transfer
+     */
+    private void addFinished(int connId) {
+        synchronized (finished) {
+            finished.remove(connId);
+            finished.put(connId, System.nanoTime());
+            if (finished.size() > MAX_FINISHED) finished.remove(finished.keySet().iterator().next());
+        }
+    }
+
+    /**
+     * @param connId connection id
+     * @return true if a transfer with this id finished in the last FINISHED_TIMEOUT
+     */
+    private boolean isFinished(int connId) {
+        synchronized (finished) {
+            long now = System.nanoTime();
+            for (Iterator<Long> it = finished.values().iterator();
+                 it.hasNext() && now - it.next() > FINISHED_TIMEOUT * 1000000; ) {
+                it.remove();
+            }
+            return finished.containsKey(connId);
+        }
+    }
+
+    /**
+     * timer thread, has the worker of every session that has received nothing for IDLE_TIMEOUT drop it
+     */
+    private void checkIdle() {
+        long now = System.nanoTime();
+        for (Connection connection : connections.values()) {
+            if (now - connection.lastReceived > IDLE_TIMEOUT * 1000000) connection.offer(IDLE_CHECK);
+        }
+    }
+
+    /**
+     * a session with its queue of datagrams. The queue is drained by one worker at a time, which the scheduled flag
+     * guards, so the session itself needs no locking
+     */
+    private class Connection implements Runnable {
+
+        private final int connId;
+        private final ReceiverSession session;
+        private final Queue<ByteBuffer> queue = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private volatile long lastReceived = System.nanoTime(); // System.nanoTime() of the last datagram
+        private boolean timerArmed; // only used by the worker that holds scheduled
+        private boolean closed;
+
+        Connection(int connId, ReceiverSession session) {
+            this.connId = connId;
+            this.session = session;
+        }
+
+        void offer(ByteBuffer buf) {
+            queue.add(buf);
+            if (scheduled.compareAndSet(false, true)) workers.execute(this);
+        }
+
+        @Override
+        public void run() {
+            do {
+                ByteBuffer buf;
+                while ((buf = queue.poll()) != null) {
+                    if (!closed) buf = handle(buf);
+                    recycle(buf);
+                }
+                scheduled.set(false);
+                // a datagram queued after the last poll but before the flag was cleared would otherwise wait
+            } while (!queue.isEmpty() && scheduled.compareAndSet(false, true));
+        }
+
+        /**
+         * @param buf datagram, ACK_TIMER or IDLE_CHECK
+         * @return buffer that is free again
+         */
+        private ByteBuffer handle(ByteBuffer buf) {
+            try {
+                if (buf == ACK_TIMER) {
+                    timerArmed = false;
+                    session.onAckTimer();
+                } else if (buf == IDLE_CHECK) {
+                    // a datagram may have arrived since the check
+                    long idle = (System.nanoTime() - lastReceived) / 1000000;
+                    if (idle > IDLE_TIMEOUT) throw new Exception("Nothing received for " + idle / 1000 + " s");
+                } else {
+                    buf = session.receive(buf, buf.limit());
+                }
+
+                if (session.isFinished()) {
+                    closed = true;
+                    // remembered before it is removed, so that the receiving thread always finds one of the two
+                    addFinished(connId);
+                    connections.remove(connId, this);
+                } else if (session.hasPendingAck() && !timerArmed) {
+                    timerArmed = true;
+                    timers.schedule(() -> offer(ACK_TIMER), session.getAckDeadline() - System.nanoTime(),
+                            TimeUnit.NANOSECONDS);
+                }
+            } catch (Exception e) {
+                System.err.println("Connection " + Integer.toUnsignedString(connId) + ": " + e.getMessage());
+                closed = true;
+                connections.remove(connId, this);
+                try {
+                    session.close();
+                } catch (IOException ignored) {
+                }
+            }
+            return buf;
+        }
+    }
+}
@@ -0,0 +1,656 @@
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+
+/**
+ * receiving side of a single transfer: reorder and ack state, output file or channel, arrival log and metrics. It is
+ * driven by whoever owns the socket, the single transfer loop of {@link Receiver}, a {@link ReceiverServer} or a
+ * {@link ReceiverChannel}, and is not thread safe, so all calls for one session must come from one thread at a time
+ */
+public class ReceiverSession {
+
+    private static final int WINDOW_SIZE = 10;
+    private static final int SeqNumModulo = 32;
+    // resumable transfers only, data written between two checkpoints
+    private static final long CHECKPOINT_BYTES = 8 * 1024 * 1024;
+
+    private final String fileName;
+    private final boolean selectiveRepeat;
+    private final int extWindow;
+    // window advertised with the extended header, extWindow scaled down for longer packets so that the reorder
+    // buffer holds about as many bytes as with MAX_DATA_LENGTH
+    private int window;
+    private int maxDataLength = PacketCodec.MAX_DATA_LENGTH; // longest data a sender may negotiate
+    private int datagramLength = PacketCodec.MAX_UDP_LENGTH; // capacity of the datagram buffers
+    private final int ackEvery;
+    private final int ackDelay;
+    private final boolean awaitOffset; // the output is opened once the SYN gives the offset of the range
+    private final int batchSize;
+    private final int batches;
+    private final Executor writers; // runs the writes of the output and the arrival log, null for threads of their own
+
+    // resumable transfers only, null otherwise. The output is opened once the sender asks for the offset to resume
+    // from, or from the start if it does not ask
+    private final Checkpoint checkpoint;
+    private long outputStart; // offset of the first byte written by outputStream
+    private long outputStartCrc; // CRC-32 of the output before outputStart
+    private long uncheckpointed; // data bytes written since the last checkpoint
+    private int resumeNonce; // nonce of the resume query that opened the output
+    private final PrintWriter arriveWriter; // null if there is no arrival log
+    private TransferMetrics metrics = new TransferMetrics();
+    private AsyncChannelWriter outputStream;
+    private boolean compressed; // data is a zlib stream, inflated by the output writer
+    // forward error correction only, go-back-n then buffers out of order packets like selective repeat so that a
+    // group's parity can fill the gap
+    private ParityDecoder parity;
+
+    private int rcvBase; // index of the next packet to be written
+    // selective repeat and forward error correction only, datagrams received ahead of rcvBase, indexed by packet
+    // index % length. A buffered datagram is swapped with the receive buffer instead of copied, and a slot's buffer
+    // is reused once written
+    private ByteBuffer[] reorderBuffer;
+    private int[] reorderLength; // number of data bytes in each slot, -1 if empty
+    private int[] reorderOffset; // index of the first data byte in each slot
+
+    // go-back-n only, in order packets received since the last ack, which is sent once there are ackEvery of them
+    // or ackDelay after the first of them
+    private int pendingAcks;
+    private long ackDeadline;
+    private boolean extendedAcks; // header format of the sender's packets
+    private int connId; // connection id of the sender's packets, echoed in every reply
+
+    private ByteBuffer receiveBuffer; // buffer of the datagram being handled
+    private final PacketCodec.Header receiveHeader = new PacketCodec.Header();
+    private final ByteBuffer sendBuffer = ByteBuffer.allocate(PacketCodec.CONN_HEADER_LENGTH + 8);
+    private final DatagramPacket sendDp;
+    private final DatagramSocket sendSocket;
+
+    private boolean finished; // EOT has been acked and the files closed, sendDp still holds the EOT's reply
+
+    /**
+     * @param fileName output file
+     * @param arrivalLog name of the arrival log, or null for none
+     * @param awaitOffset true to write a range of the output file that starts at an offset carried by the SYN,
+     *                    false to truncate and write it from the start
+     * @param sendSocket socket to send acks from
+     * @param peer address the acks are sent to
+     * @throws IOException
+     */
+    public ReceiverSession(String fileName, String arrivalLog, boolean awaitOffset, boolean selectiveRepeat,
+                           int extWindow, int ackEvery, int ackDelay, DatagramSocket sendSocket, SocketAddress peer)
+            throws IOException {
+        this(fileName, arrivalLog, awaitOffset, selectiveRepeat, extWindow, ackEvery, ackDelay, sendSocket, peer,
+                AsyncChannelWriter.DEFAULT_BATCH_SIZE, AsyncChannelWriter.DEFAULT_BATCHES);
+    }
+
+    /**
+     * @param batchSize size of the output and arrival log batches
+     * @param batches number of batches of each, which bounds the memory of a session
+     */
+    public ReceiverSession(String fileName, String arrivalLog, boolean awaitOffset, boolean selectiveRepeat,
+                           int extWindow, int ackEvery, int ackDelay, DatagramSocket sendSocket, SocketAddress peer,
+                           int batchSize, int batches) throws IOException {
+        this(fileName, arrivalLog, awaitOffset, selectiveRepeat, extWindow, ackEvery, ackDelay, sendSocket, peer,
+                batchSize, batches, null);
+    }
+
+    /**
+     * @param checkpoint checkpoint of the output file to resume from and keep up to date, or null to always write
+     *                   the whole file. Does not combine with awaitOffset
+     */
+    public ReceiverSession(String fileName, String arrivalLog, boolean awaitOffset, boolean selectiveRepeat,
+                           int extWindow, int ackEvery, int ackDelay, DatagramSocket sendSocket, SocketAddress peer,
+                           int batchSize, int batches, Checkpoint checkpoint) throws IOException {
+        this(fileName, null, arrivalLog, awaitOffset, selectiveRepeat, extWindow, ackEvery, ackDelay, sendSocket, peer,
+                batchSize, batches, checkpoint, null);
+    }
+
+    /**
+     * writes the output and the arrival log on a few threads shared with other sessions, e.g. of a server, instead
+     * of a thread of their own each
+     * @param writers executor of the writes, which must not run the session itself, see {@link AsyncChannelWriter}
+     */
+    public ReceiverSession(String fileName, String arrivalLog, boolean selectiveRepeat, int extWindow, int ackEvery,
+                           int ackDelay, DatagramSocket sendSocket, SocketAddress peer, int batchSize, int batches,
+                           Executor writers) throws IOException {
+        this(fileName, null, arrivalLog, false, selectiveRepeat, extWindow, ackEvery, ackDelay, sendSocket, peer,
+                batchSize, batches, null, writers);
+    }
+
+    /**
+     * writes the data in order to a channel instead of a file, e.g. the sink of a pipe
+     * @param output output channel, closed with the session
+     */
+    public ReceiverSession(GatheringByteChannel output, boolean selectiveRepeat, int extWindow, int ackEvery,
+                           int ackDelay, DatagramSocket sendSocket, SocketAddress peer) throws IOException {
+        this(null, output, null, false, selectiveRepeat, extWindow, ackEvery, ackDelay, sendSocket, peer,
+                AsyncChannelWriter.DEFAULT_BATCH_SIZE, AsyncChannelWriter.DEFAULT_BATCHES, null, null);
+    }
+
+    private ReceiverSession(String fileName, GatheringByteChannel output, String arrivalLog, boolean awaitOffset,
+                            boolean selectiveRepeat, int extWindow, int ackEvery, int ackDelay,
+                            DatagramSocket sendSocket, SocketAddress peer, int batchSize, int batches,
+                            Checkpoint checkpoint, Executor writers) throws IOException {
+        this.fileName = fileName;
+        this.selectiveRepeat = selectiveRepeat;
+        this.extWindow = extWindow;
+        this.window = extWindow;
+        this.ackEvery = ackEvery;
+        this.ackDelay = ackDelay;
+        this.awaitOffset = awaitOffset;
+        this.batchSize = batchSize;
+        this.batches = batches;
+        this.writers = writers;
+        this.checkpoint = checkpoint;
+        this.sendSocket = sendSocket;
+        this.sendDp = new DatagramPacket(sendBuffer.array(), sendBuffer.capacity(), peer);
+
+        // both are written in large batches on another thread so that acks never wait on the disk
+        arriveWriter = arrivalLog == null ? null : new PrintWriter(new OutputStreamWriter(
+                new AsyncChannelWriter(arrivalLog, -1, batchSize, batches, writers), StandardCharsets.UTF_8));
+        if (output != null) {
+            outputStream = new AsyncChannelWriter(output, batchSize, batches);
+        } else if (!awaitOffset && checkpoint == null) {
+            outputStream = new AsyncChannelWriter(fileName, -1, batchSize, batches, writers);
+        }
+
+        if (selectiveRepeat) initReorder();
+    }
+
+    /**
+     * records the session's figures in metrics instead of a private instance, which may be shared with other
+     * sessions. Must be called before the first datagram
+     * @param metrics metrics
+     */
+    public void setMetrics(TransferMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * lets a sender negotiate data packets up to maxDataLength long, instead of MAX_DATA_LENGTH. Must be called
+     * before the first datagram
+     * @param maxDataLength longest data of a packet
+     */
+    public void setMaxDataLength(int maxDataLength) {
+        this.maxDataLength = maxDataLength;
+    }
+
+    public TransferMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * handles a received datagram
+     * @param buf datagram buffer of capacity PacketCodec.MAX_UDP_LENGTH, or of the capacity of the buffer returned by
+     *            the previous call, or any buffer that holds the datagram, the session may keep it
+     * @param udpLength number of bytes received
+     * @return buffer to receive the next datagram into, buf itself unless the session kept it or needs a larger one
+     * @throws Exception if the datagram is invalid
+     */
+    public ByteBuffer receive(ByteBuffer buf, int udpLength) throws Exception {
+        receiveBuffer = buf;
+        PacketCodec.Header h = receiveHeader;
+        if (finished) {
+            // the reply to the EOT was lost and the sender retransmits it, anything else comes too late
+            if (PacketCodec.decode(receiveBuffer, udpLength, h) && h.type == PacketCodec.TYPE_EOT) {
+                sendSocket.send(sendDp);
+            }
+            return receiveBuffer;
+        }
+        if (!PacketCodec.decode(receiveBuffer, udpLength, h)) {
+            // a probe cut short on a path with a smaller MTU is as good as lost
+            if (udpLength >= PacketCodec.EXT_HEADER_LENGTH && h.type == PacketCodec.TYPE_PROBE) return receiveBuffer;
+            throw new Exception("Received invalid packet");
+        }
+        connId = h.connId;
+        metrics.start();
+        metrics.onReceive(h.seqNum, connId);
+
+        if (h.type == PacketCodec.TYPE_DATA) { // if regular packet
+            // a sender that neither resumes nor sends a SYN starts from scratch
+            if (outputStream == null && checkpoint != null) openResumable(0);
+            if (outputStream == null) {
+                throw new Exception("Received data before the offset of the range");
+            }
+            if (h.compressed != compressed) {
+                throw new Exception("Received data that does not match the negotiated compression");
+            }
+
+            // get seqNum and audit
+            if (arriveWriter != null) arriveWriter.println(h.seqNum);
+
+            // compute ack
+            if (selectiveRepeat) {
+                int ack = receivePacket(h);
+                if (ack >= 0) {
+                    sendPacket(PacketCodec.TYPE_ACK, ack, h.extended, window);
+                }
+            } else {
+                int before = rcvBase;
+                if (parity != null) {
+                    receivePacket(h);
+                } else {
+                    receivePacketGbn(h);
+                }
+                extendedAcks = h.extended;
+                ackGbn(rcvBase > before);
+            }
+        } else if (h.type == PacketCodec.TYPE_PARITY) { // forward error correction
+            if (parity == null) throw new Exception("Received parity that was not negotiated");
+            receiveParity(h);
+        } else if (h.type == PacketCodec.TYPE_EOT) { // if eot
+            // get seqNum and audit
+            if (arriveWriter != null) arriveWriter.println(h.seqNum);
+
+            if (checkpoint != null && h.length >= 8) {
+                // a resuming sender's EOT carries the CRC-32 of the whole file, which is answered with the CRC-32
+                // of what is on the disk
+                long expected = receiveBuffer.getLong(h.dataOffset);
+                close();
+                long actual = checkpoint.getCrc();
+                sendLong(PacketCodec.TYPE_EOT, h.seqNum, h.extended, 0, actual);
+                finished = true;
+
+                // either way the next transfer starts from scratch
+                checkpoint.delete();
+                if (actual != expected) {
+                    throw new Exception("Checksum mismatch, " + Long.toHexString(actual) + " instead of "
+                            + Long.toHexString(expected));
+                }
+            } else {
+                // send a eot packet back
+                sendPacket(PacketCodec.TYPE_EOT, h.seqNum, h.extended, 0);
+
+                // close files
+                close();
+                finished = true;
+            }
+        } else if (h.type == PacketCodec.TYPE_RESUME) { // sender asks where to resume from
+            if (checkpoint == null) throw new Exception("Received resume query that was not enabled");
+
+            // a retransmitted query is answered again, a new sender replaces whatever the old one had sent
+            if (outputStream == null || h.seqNum != resumeNonce) {
+                restart();
+                openResumable(checkpoint.getOffset());
+                resumeNonce = h.seqNum;
+            }
+            sendLong(PacketCodec.TYPE_RESUME, h.seqNum, true, window, outputStart);
+        } else if (h.type == PacketCodec.TYPE_SYN) { // sender offers the extended header
+            if (awaitOffset && outputStream == null) {
+                if (h.length < 8) throw new Exception("Received SYN without the offset of the range");
+                long offset = receiveBuffer.getLong(h.dataOffset);
+                outputStream = new AsyncChannelWriter(fileName, offset, batchSize, batches, writers);
+            }
+            if (checkpoint != null && outputStream == null) openResumable(0);
+
+            // accept compression and parity, which are offered before any data is sent
+            if (h.compressed && !compressed && outputStream != null) {
+                outputStream.enableInflate();
+                compressed = true;
+            }
+            int dataLength = acceptDataLength(h);
+            if (h.fec && parity == null && h.seqNum > 0) {
+                if (reorderBuffer == null) initReorder();
+                parity = new ParityDecoder(h.seqNum, Math.max(WINDOW_SIZE, window), dataLength);
+            }
+
+            int type = PacketCodec.TYPE_SYN;
+            if (compressed) type |= PacketCodec.COMPRESSED_FLAG;
+            if (parity != null) type |= PacketCodec.FEC_FLAG;
+            int seqNum = parity != null ? parity.getGroupSize() : 0;
+            if (dataLength > PacketCodec.MAX_DATA_LENGTH) {
+                sendInt(type | PacketCodec.PAYLOAD_FLAG, seqNum, window, dataLength);
+            } else {
+                sendPacket(type, seqNum, true, window);
+            }
+
+            // the SYN's own buffer is too short for the packets that follow
+            if (receiveBuffer.capacity() < datagramLength) receiveBuffer = ByteBuffer.allocate(datagramLength);
+        } else if (h.type == PacketCodec.TYPE_PROBE) { // sender probes the path with a datagram of its data length
+            sendPacket(PacketCodec.TYPE_PROBE, h.seqNum, true, window);
+        } else {
+            throw new Exception("Received invalid packet");
+        }
+        return receiveBuffer;
+    }
+
+    /**
+     * @return true once the EOT has been acked and the files closed. After that the session only answers
+     * retransmitted EOTs, whose reply was lost, with the same reply
+     */
+    public boolean isFinished() {
+        return finished;
+    }
+
+    /**
+     * @return true if an ack is being delayed, to be sent by {@link #onAckTimer()} at {@link #getAckDeadline()}
+     */
+    public boolean hasPendingAck() {
+        return pendingAcks > 0;
+    }
+
+    /**
+     * @return System.nanoTime() at which the delayed ack is due
+     */
+    public long getAckDeadline() {
+        return ackDeadline;
+    }
+
+    /**
+     * sends the delayed ack if it is due
+     * @throws IOException
+     */
+    public void onAckTimer() throws IOException {
+        if (pendingAcks > 0 && ackDeadline - System.nanoTime() <= 0) sendPendingAck();
+    }
+
+    /**
+     * closes the output file and the arrival log, and brings the checkpoint up to date
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        if (arriveWriter != null) arriveWriter.close();
+        closeOutput();
+    }
+
+    private void closeOutput() throws IOException {
+        if (outputStream == null) return;
+
+        // a failed write is caught by the checksum at the end, so the checkpoint is kept up to date regardless
+        try {
+            outputStream.close();
+        } finally {
+            if (checkpoint != null) {
+                long written = outputStream.getBytesWritten();
+                checkpoint.save(outputStart + written, Checkpoint.combine(outputStartCrc, outputStream.getChecksum(),
+                        written));
+            }
+            outputStream = null;
+        }
+    }
+
+    /**
+     * resumable transfers only, opens the output to write from an offset, dropping anything after it
+     * @param offset checkpoint offset, or 0 to start from scratch
+     * @throws IOException
+     */
+    private void openResumable(long offset) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE)) {
+            channel.truncate(offset);
+        }
+        outputStart = offset;
+        outputStartCrc = offset > 0 ? checkpoint.getCrc() : 0;
+        uncheckpointed = 0;
+        outputStream = new AsyncChannelWriter(fileName, offset, batchSize, batches, writers);
+        outputStream.enableChecksum();
+    }
+
+    /**
+     * resumable transfers only, closes the output and forgets the state of the previous sender, whose packet
+     * indices start over from the resumed offset
+     * @throws IOException
+     */
+    private void restart() throws IOException {
+        try {
+            closeOutput();
+        } catch (IOException e) {
+            // the previous sender's compressed stream ends part way, everything inflated so far is still valid
+            if (!compressed) throw e;
+        }
+        rcvBase = 0;
+        pendingAcks = 0;
+        compressed = false;
+        parity = null;
+        if (reorderLength != null) Arrays.fill(reorderLength, -1);
+    }
+
+    /**
+     * counts data that has been written to the output, and has the writer checkpoint it every CHECKPOINT_BYTES once
+     * it is on the disk
+     * @param length number of data bytes
+     * @throws IOException
+     */
+    private void onWritten(int length) throws IOException {
+        metrics.onPayload(length);
+        if (checkpoint == null) return;
+
+        uncheckpointed += length;
+        if (uncheckpointed < CHECKPOINT_BYTES) return;
+
+        uncheckpointed = 0;
+        long start = outputStart;
+        long startCrc = outputStartCrc;
+        outputStream.sync((bytes, crc) -> checkpoint.save(start + bytes, Checkpoint.combine(startCrc, crc, bytes)));
+    }
+
+    /**
+     * takes the data length offered by a SYN, up to maxDataLength, and sizes the window and datagram buffers for it
+     * @param h header of the SYN, its data is still in the receive buffer
+     * @return accepted data length, MAX_DATA_LENGTH if none was offered
+     */
+    private int acceptDataLength(PacketCodec.Header h) {
+        int dataLength = PacketCodec.MAX_DATA_LENGTH;
+        if (h.payload && h.length >= 4) {
+            int offered = receiveBuffer.getInt(h.dataOffset + h.length - 4);
+            dataLength = Math.max(PacketCodec.MAX_DATA_LENGTH, Math.min(maxDataLength, offered));
+        }
+
+        window = (int) Math.max(Math.min(extWindow, WINDOW_SIZE),
+                (long) extWindow * PacketCodec.MAX_DATA_LENGTH / dataLength);
+        datagramLength = Math.max(datagramLength, PacketCodec.CONN_HEADER_LENGTH + dataLength);
+        return dataLength;
+    }
+
+    private void sendPacket(int type, int seqNum, boolean extended, int window) throws IOException {
+        send(type, seqNum, 0, extended, window);
+    }
+
+    /**
+     * sends a packet with 8 bytes of data
+     * @param value data
+     */
+    private void sendLong(int type, int seqNum, boolean extended, int window, long value) throws IOException {
+        sendBuffer.putLong(PacketCodec.headerLength(extended, connId), value);
+        send(type, seqNum, 8, extended, window);
+    }
+
+    /**
+     * sends an extended header packet with 4 bytes of data
+     * @param value data
+     */
+    private void sendInt(int type, int seqNum, int window, int value) throws IOException {
+        sendBuffer.putInt(PacketCodec.headerLength(true, connId), value);
+        send(type, seqNum, 4, true, window);
+    }
+
+    private void send(int type, int seqNum, int length, boolean extended, int window) throws IOException {
+        int udpLength = PacketCodec.encodeHeader(sendBuffer, type, seqNum, length, extended, window, connId);
+        sendDp.setLength(udpLength);
+        sendSocket.send(sendDp);
+        if (type == PacketCodec.TYPE_ACK) {
+            metrics.onAckSent(seqNum, connId);
+        } else if (type == PacketCodec.TYPE_EOT) {
+            metrics.onEot(seqNum, connId);
+        }
+    }
+
+    /**
+     * go-back-n only, acks rcvBase - 1 now, or delays the ack of an in order packet until ackEvery packets are
+     * pending or ackDelay has passed. A packet that is out of order is acked at once, so that the sender sees its
+     * duplicate acks without delay
+     * @param inOrder true if the packet was written
+     * @throws IOException
+     */
+    private void ackGbn(boolean inOrder) throws IOException {
+        if (inOrder && pendingAcks + 1 < ackEvery) {
+            if (pendingAcks == 0) ackDeadline = System.nanoTime() + ackDelay * 1000000L;
+            pendingAcks++;
+            return;
+        }
+
+        sendPendingAck();
+    }
+
+    /**
+     * go-back-n only, sends the cumulative ack for rcvBase - 1, nothing before packet 0 has been received
+     * @throws IOException
+     */
+    private void sendPendingAck() throws IOException {
+        pendingAcks = 0;
+        if (rcvBase > 0) {
+            sendPacket(PacketCodec.TYPE_ACK, rcvBase - 1, extendedAcks, window);
+        }
+    }
+
+    /**
+     * @param h received header
+     * @return position of the packet relative to rcvBase, negative if it precedes rcvBase. A 32-modulo seqNum is
+     * taken to be within half the sequence number space of rcvBase
+     */
+    private int offsetOf(PacketCodec.Header h) {
+        if (h.extended) return h.seqNum - rcvBase;
+
+        int offset = Math.floorMod(h.seqNum - rcvBase, SeqNumModulo);
+        return offset >= SeqNumModulo / 2 ? offset - SeqNumModulo : offset;
+    }
+
+    /**
+     * go-back-n only, writes the packet if it is the next one in order
+     * @param h received header, its data is still in the receive buffer
+     * @throws IOException
+     */
+    private void receivePacketGbn(PacketCodec.Header h) throws IOException {
+        if (offsetOf(h) == 0) { // if order is correct
+            // write packet to output file
+            outputStream.write(receiveBuffer.array(), h.dataOffset, h.length);
+            onWritten(h.length);
+            rcvBase++;
+        } else {
+            metrics.onDiscard();
+        }
+    }
+
+    private void initReorder() {
+        int slots = Math.max(WINDOW_SIZE, extWindow);
+        reorderBuffer = new ByteBuffer[slots];
+        reorderLength = new int[slots];
+        reorderOffset = new int[slots];
+        Arrays.fill(reorderLength, -1);
+    }
+
+    /**
+     * selective repeat, or go-back-n with forward error correction, buffers a packet that falls in the receive
+     * window and writes all packets that are now in order
+     * @param h received header, its data is still in the receive buffer
+     * @return index of the packet to ack, or -1 if it is outside both the current and the previous window
+     * @throws IOException
+     */
+    private int receivePacket(PacketCodec.Header h) throws IOException {
+        int window = h.extended ? this.window : WINDOW_SIZE;
+        int offset = offsetOf(h);
+        int idx = rcvBase + offset;
+
+        if (offset >= window || offset < -window) {
+            metrics.onDiscard();
+            return -1;
+        }
+
+        // in current window, buffer unless duplicate. In previous window, its ack was lost so only ack again
+        if (offset >= 0) {
+            int slot = idx % reorderBuffer.length;
+            if (reorderLength[slot] < 0) {
+                // hand the receive buffer over to the slot and receive into the slot's old buffer from now on
+                ByteBuffer free = reorderBuffer[slot];
+                reorderBuffer[slot] = receiveBuffer;
+                reorderLength[slot] = h.length;
+                reorderOffset[slot] = h.dataOffset;
+                receiveBuffer = free != null && free.capacity() >= datagramLength ? free
+                        : ByteBuffer.allocate(datagramLength);
+
+                if (parity != null) {
+                    parity.addData(idx, reorderBuffer[slot].array(), h.dataOffset, h.length);
+                    rebuildMissing(parity.groupOf(idx));
+                }
+            } else {
+                metrics.onDiscard();
+            }
+
+            writeInOrder();
+        } else {
+            metrics.onDiscard();
+        }
+        return idx;
+    }
+
+    /**
+     * writes the buffered packets from rcvBase on until the first gap
+     * @throws IOException
+     */
+    private void writeInOrder() throws IOException {
+        for (int slot = rcvBase % reorderBuffer.length; reorderLength[slot] >= 0;
+             slot = rcvBase % reorderBuffer.length) {
+            outputStream.write(reorderBuffer[slot].array(), reorderOffset[slot], reorderLength[slot]);
+            onWritten(reorderLength[slot]);
+            reorderLength[slot] = -1;
+            rcvBase++;
+        }
+    }
+
+    /**
+     * forward error correction only, adds a parity packet to its group and writes the packets it completes
+     * @param h received header, its data is still in the receive buffer
+     * @throws IOException
+     */
+    private void receiveParity(PacketCodec.Header h) throws IOException {
+        // the whole group has been written already
+        int start = h.seqNum;
+        if (start + (h.window >>> 16) <= rcvBase) return;
+
+        int before = rcvBase;
+        parity.addParity(start, h.window, receiveBuffer.array(), h.dataOffset, h.length);
+        rebuildMissing(parity.groupOf(start));
+        writeInOrder();
+
+        // the sender is likely stalled on the rebuilt packet, so ack it without delay
+        if (!selectiveRepeat && rcvBase > before) sendPendingAck();
+    }
+
+    /**
+     * forward error correction only, rebuilds the one missing data packet of a group into its reorder slot if the
+     * group's parity has arrived
+     * @param g group
+     * @throws IOException
+     */
+    private void rebuildMissing(int g) throws IOException {
+        if (!parity.canRebuild(g)) return;
+
+        int start = g * parity.getGroupSize();
+        int end = Math.min(start + parity.packetsOf(g), rcvBase + reorderBuffer.length);
+        for (int idx = Math.max(start, rcvBase); idx < end; idx++) {
+            int slot = idx % reorderBuffer.length;
+            if (reorderLength[slot] >= 0) continue;
+
+            if (reorderBuffer[slot] == null || reorderBuffer[slot].capacity() < datagramLength) {
+                reorderBuffer[slot] = ByteBuffer.allocate(datagramLength);
+            }
+            reorderLength[slot] = parity.rebuild(g, reorderBuffer[slot].array(), 0);
+            reorderOffset[slot] = 0;
+
+            // selective repeat acks every packet, the sender would otherwise time this one out
+            if (selectiveRepeat) sendPacket(PacketCodec.TYPE_ACK, idx, true, window);
+            return;
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/**
+ * smoothed round trip time estimator with exponential backoff (RFC 6298), all times in milliseconds
+ */
+public class RttEstimator {
+
+    private static final double ALPHA = 0.125;
+    private static final double BETA = 0.25;
+    private static final int K = 4;
+
+    private final long minRto;
+    private final long maxRto;
+
+    private double srtt;
+    private double rttVar;
+    private long rto; // timeout before any backoff
+    private int backoffs; // number of doublings applied since the last sample or reset
+    private boolean hasSample;
+
+    public RttEstimator(long initialRto, long minRto, long maxRto) {
+        this.minRto = minRto;
+        this.maxRto = maxRto;
+        this.rto = initialRto;
+    }
+
+    /**
+     * feeds a round trip time measured on a packet that was never retransmitted (Karn's rule), this also clears any
+     * backoff applied since the last sample
+     * @param rtt measured round trip time
+     */
+    public synchronized void addSample(double rtt) {
+        if (!hasSample) {
+            srtt = rtt;
+            rttVar = rtt / 2;
+            hasSample = true;
+        } else {
+            rttVar = (1 - BETA) * rttVar + BETA * Math.abs(srtt - rtt);
+            srtt = (1 - ALPHA) * srtt + ALPHA * rtt;
+        }
+        rto = clamp((long) Math.ceil(srtt + K * rttVar));
+        backoffs = 0;
+    }
+
+    /**
+     * doubles the timeout after a retransmission timer expires
+     */
+    public synchronized void backoff() {
+        if (getRto() < maxRto) backoffs++;
+    }
+
+    /**
+     * drops the backoff once an ack shows the path is delivering again, even if Karn's rule forbids sampling it
+     */
+    public synchronized void resetBackoff() {
+        backoffs = 0;
+    }
+
+    public synchronized long getRto() {
+        return clamp(rto << Math.min(backoffs, 30));
+    }
+
+    /**
+     * @return smoothed round trip time, or -1 if no sample has been taken yet
+     */
+    public synchronized double getSrtt() {
+        return hasSample ? srtt : -1;
+    }
+
+    public synchronized double getRttVar() {
+        return rttVar;
+    }
+
+    private long clamp(long value) {
+        return Math.max(minRto, Math.min(maxRto, value));
+    }
+}
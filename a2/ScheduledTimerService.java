@@ -0,0 +1,84 @@
+import java.io.IOException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * timer service backed by one long-lived scheduler thread, re-arming a deadline never creates a thread
+ *
+ * threading model: arm and cancel must be called with {@code lock} held, and an expiry runs the handler on the
+ * scheduler thread with {@code lock} held. An expiry whose deadline was cancelled or re-armed while it was waiting
+ * for the lock is dropped, so the handler only ever sees live deadlines.
+ */
+public class ScheduledTimerService implements TimerService {
+
+    private final Object lock;
+    private final Handler handler;
+    private final ScheduledThreadPoolExecutor executor;
+    private final ScheduledFuture<?>[] pending; // indexed by key, guarded by lock
+
+    public ScheduledTimerService(int keys, Object lock, Handler handler) {
+        this.lock = lock;
+        this.handler = handler;
+        this.pending = new ScheduledFuture<?>[keys];
+
+        executor = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread thread = new Thread(r, "retransmit-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.setRemoveOnCancelPolicy(true);
+    }
+
+    @Override
+    public void arm(int key, long delayMs) {
+        cancel(key);
+        Expiry expiry = new Expiry(key);
+        expiry.future = executor.schedule(expiry, delayMs, TimeUnit.MILLISECONDS);
+        pending[key] = expiry.future;
+    }
+
+    @Override
+    public void cancel(int key) {
+        if (pending[key] != null) {
+            pending[key].cancel(false);
+            pending[key] = null;
+        }
+    }
+
+    @Override
+    public void cancelAll() {
+        for (int i = 0; i < pending.length; i++) {
+            cancel(i);
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private class Expiry implements Runnable {
+        private final int key;
+        private ScheduledFuture<?> future; // set by arm before the lock is released
+
+        Expiry(int key) {
+            this.key = key;
+        }
+
+        @Override
+        public void run() {
+            synchronized (lock) {
+                // cancelled or re-armed while waiting for the lock
+                if (pending[key] != future) return;
+                pending[key] = null;
+
+                try {
+                    handler.onTimeout(key);
+                } catch (IOException e) {
+                    // swallow
+                }
+            }
+        }
+    }
+}
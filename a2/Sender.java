@@ -1,42 +1,78 @@
 import java.io.*;
 import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetAddress;
-import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Timer;
-import java.util.TimerTask;
-import java.util.logging.FileHandler;
-import java.util.logging.Logger;
-import java.util.logging.SimpleFormatter;
-
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.zip.Deflater;
+
+/**
+ * command line sender of one file. The transfer itself is run by a {@link SenderSession}, which this configures from
+ * the options and feeds the packets of the file
+ */
 public class Sender {
 
-    private static final String LOG_FILE_SEQ = "seqnum.log";
-    private static final String LOG_FILE_ACK = "ack.log";
-
     private static final int PACKET_DATA_SIZE = 500;
-    private static final int PACKET_SIZE = 512;
-    private static final int WINDOW_SIZE = 10;
-    private static final int SeqNumModulo = 32;
 
-    private static PrintWriter seqWriter, ackWriter;
+    private static final String MODE_GBN = "gbn";
+    private static final String MODE_SR = "sr";
+
+    private static final String CC_AIMD = "aimd";
+    private static final String CC_OFF = "off";
+
+    private static final String LOG_FILE_METRICS = "sender-metrics.log";
+    private static final String LOG_FILE_TRACE = "sender-trace.bin";
+    private static final int DEFAULT_TRACE_RECORDS = 65536;
+
+    // seqnum, ack, rtt, cwnd and pace logs are only written with --log
+    private static boolean log;
+    private static int traceRecords; // 0 if there is no event trace
+    private static TransferMetrics metrics = new TransferMetrics();
 
     private static int sendPort;
     private static int receivePort;
     private static String fileName;
+    private static boolean selectiveRepeat;
+    private static boolean streaming;
+    private static boolean mapped;
+    private static boolean nio;
+    private static boolean extended; // 32-bit sequence numbers negotiated with the receiver
+    private static boolean compress; // packets carry the deflated file, once accepted by the receiver
+    private static int compressLevel;
+
+    // forward error correction only, one parity packet follows every fecGroup new data packets, 0 if off
+    private static int fecGroup;
+    // connection id that tells this transfer apart at a receiver serving many of them, 0 if none
+    private static int connId;
+    // resumable transfers only, the receiver tells where to continue from and the EOT carries the file's CRC-32
+    private static boolean resume;
+    private static int maxPayload = PACKET_DATA_SIZE; // longest data of a packet to offer the receiver
+    private static int dataSize = PACKET_DATA_SIZE; // data bytes per packet, as negotiated and probed
+    private static boolean ccEnabled;
+    private static int maxWindowOption;
+    private static int maxWindow; // window negotiated by the session, which a streaming source keeps read ahead
+    private static int dupAckThreshold;
+    private static boolean pacing;
+    private static int paceRate; // packets per second, 0 to spread each window over the smoothed RTT
+    private static int initialRto;
+    private static int minRto;
+
+    // striped transfers only, this process sends the byte range of one stripe
+    private static int stripes;
+    private static int stripe = -1;
+    private static long rangeStart;
+    private static long rangeLength = Long.MAX_VALUE;
 
     private static InetAddress hostIa;
 
-    private static DatagramSocket sendSocket, receiveSocket;
-
-    private static List<DatagramPacket> packets;
-
-    private static Timer timer;
-
-    private static int windowBase;
-    private static int sentHi; // highest index of packet that has been sent in the current window
+    static PacketSource packets;
+    private static SenderSession session;
 
     private Sender() {
 
@@ -46,32 +82,39 @@ public class Sender {
         // parse input and do error check
         parseInput(args);
 
-        // init log writer
-        initLogger();
+        // run one child sender per stripe
+        if (stripes > 1 && stripe < 0) {
+            Stripes.run("Sender", args, stripes);
+            return;
+        }
 
-        // create packets
-        initPackets();
+        // init metrics
+        initLogger();
 
-        // init udp sockets
-        initUdp();
+        // init udp sockets, and the session that runs the transfer over them
+        initSession();
 
-        // start sending
-        windowBase = 0;
-        sentHi = -1;
-        sendWindow();
+        try {
+            // ask the receiver where to continue from, and checksum the whole file meanwhile
+            if (resume) initResume();
 
-        // wait for all acks
-        waitAck();
+            // negotiate the header format and window with the receiver
+            initWindow();
 
-        // send EOT and close connection
-        closeConnection();
+            // create packets
+            initPackets();
 
-        // close log writer
-        closeLogger();
+            // send all packets and the EOT, until the EOT is acked
+            session.setPackets(packets);
+            session.run();
+        } finally {
+            // close log writers, also when the transfer failed
+            closeLogger();
+        }
     }
 
-    private static void parseInput(String[] args) throws Exception {
-        if (args.length != 4) {
+    static void parseInput(String[] args) throws Exception {
+        if (args.length < 4) {
             throw new Exception("Invalid number of input arguments");
         }
 
@@ -91,154 +134,239 @@ public class Sender {
         }
 
         fileName = args[3];
-    }
 
-    private static void initLogger() throws IOException {
-        seqWriter = new PrintWriter(LOG_FILE_SEQ, "UTF-8");
-        ackWriter = new PrintWriter(LOG_FILE_ACK, "UTF-8");
-    }
+        Options options = new Options(args, 4);
+        String mode = options.getString("mode", MODE_GBN);
+        if (mode.equals(MODE_SR)) {
+            selectiveRepeat = true;
+        } else if (!mode.equals(MODE_GBN)) {
+            throw new Exception("Invalid mode " + mode);
+        }
 
-    private static void initPackets() throws Exception {
-        BufferedReader reader = null;
-        try {
-            reader = new BufferedReader(new FileReader(fileName));
+        streaming = options.has("stream");
+        mapped = options.has("mmap");
+        nio = options.has("nio");
+        extended = options.has("ext");
 
-            StringBuilder sb = new StringBuilder();
-            packets = new ArrayList<>();
+        // compression is offered with the SYN, so it needs the extended header
+        compress = options.has("compress");
+        compressLevel = options.getInt("compress", Deflater.DEFAULT_COMPRESSION);
+        if (compressLevel < Deflater.DEFAULT_COMPRESSION || compressLevel > Deflater.BEST_COMPRESSION) {
+            throw new Exception("Invalid input for --compress");
+        }
+        if (compress) extended = true;
+
+        // so is forward error correction
+        fecGroup = options.getInt("fec", 0);
+        if (fecGroup < 0) throw new Exception("Invalid input for --fec");
+        if (fecGroup > 0) extended = true;
+
+        // and so is the connection id, which is random unless given
+        if (options.has("conn-id")) {
+            connId = options.getInt("conn-id", 0);
+            if (connId < 0) throw new Exception("Invalid input for --conn-id");
+            if (connId == 0) connId = ThreadLocalRandom.current().nextInt(1, Integer.MAX_VALUE);
+            extended = true;
+        }
 
-            int readChar;
-            int seqNum = 0;
-            int charCount = 0;
-            // divide file into packets
-            while ((readChar = reader.read()) != -1) {
-                if (charCount == PACKET_DATA_SIZE) {
-                    byte[] udpBytes = packet.createPacket(seqNum, sb.toString()).getUDPdata();
-                    packets.add(new DatagramPacket(udpBytes, udpBytes.length, hostIa, sendPort));
-                    charCount = 0;
-                    sb = new StringBuilder();
-                    seqNum++;
-                }
-                sb.append((char) readChar);
-                charCount++;
-            }
+        // the resume query needs the extended header too
+        resume = options.has("resume");
+        if (resume) extended = true;
 
-            // add the last remaining packet if applicable
-            if (charCount > 0) {
-                byte[] udpBytes = packet.createPacket(seqNum, sb.toString()).getUDPdata();
-                packets.add(new DatagramPacket(udpBytes, udpBytes.length, hostIa, sendPort));
-            }
-        } catch (Exception e) {
-            throw e;
-        } finally {
-            if (reader != null) reader.close();
+        // longer packets are offered with the SYN as well
+        maxPayload = options.getInt("payload", options.has("payload") ? PacketCodec.MAX_JUMBO_DATA_LENGTH
+                : PACKET_DATA_SIZE);
+        if (maxPayload < 1 || maxPayload > PacketCodec.MAX_JUMBO_DATA_LENGTH) {
+            throw new Exception("Invalid input for --payload");
+        }
+        if (maxPayload > PACKET_DATA_SIZE) extended = true;
+        dataSize = Math.min(maxPayload, PACKET_DATA_SIZE);
+
+        stripes = options.getInt("stripes", 1);
+        if (stripes < 1) throw new Exception("Invalid input for --stripes");
+        if (options.has("stripe")) {
+            int[] stripeOption = Stripes.parse(options.getString("stripe", ""));
+            stripe = stripeOption[0];
+            stripes = stripeOption[1];
+
+            // the range offset is sent to the receiver with the SYN, so a stripe always uses the extended header
+            long fileSize = Files.size(Paths.get(fileName));
+            rangeStart = Stripes.rangeStart(fileSize, PACKET_DATA_SIZE, stripe, stripes);
+            rangeLength = Stripes.rangeStart(fileSize, PACKET_DATA_SIZE, stripe + 1, stripes) - rangeStart;
+            extended = true;
+            if (connId != 0) throw new Exception("--conn-id does not support --stripes");
+        }
+        if (resume && (stripes > 1 || connId != 0)) {
+            throw new Exception("--resume does not support --stripes or --conn-id");
+        }
+
+        String ccMode = options.getString("cc", CC_AIMD);
+        if (ccMode.equals(CC_AIMD)) {
+            ccEnabled = true;
+        } else if (!ccMode.equals(CC_OFF)) {
+            throw new Exception("Invalid congestion control " + ccMode);
+        }
+
+        pacing = options.has("pace");
+        paceRate = options.getInt("pace", 0);
+        if (paceRate < 0) throw new Exception("Invalid input for --pace");
+
+        dupAckThreshold = options.getInt("dup-acks", SenderSession.DUP_ACK_THRESHOLD);
+        if (dupAckThreshold < 0) throw new Exception("Invalid input for --dup-acks");
+
+        maxWindowOption = options.getInt("max-window", SenderSession.DEFAULT_MAX_WINDOW);
+        if (maxWindowOption < 1) throw new Exception("Invalid input for --max-window");
+
+        log = options.has("log");
+        if (options.has("trace")) {
+            traceRecords = options.getInt("trace", DEFAULT_TRACE_RECORDS);
+            if (traceRecords < 1) throw new Exception("Invalid input for --trace");
         }
+
+        // a timeout of 0 would make the socket wait forever
+        initialRto = options.getInt("rto", (int) SenderSession.INITIAL_RTO);
+        if (initialRto < 1) throw new Exception("Invalid input for --rto");
+        minRto = options.getInt("min-rto", (int) SenderSession.MIN_RTO);
+        if (minRto < 1) throw new Exception("Invalid input for --min-rto");
     }
 
-    private static void initUdp() throws SocketException {
-        sendSocket = new DatagramSocket();
-        receiveSocket = new DatagramSocket(receivePort);
+    private static void initLogger() throws Exception {
+        // concurrent transfers to one receiver log to e.g. seqnum.<connection id>.log, like stripes
+        int logIndex = logIndex();
+        metrics = new TransferMetrics(traceRecords);
+        metrics.register("Sender", logIndex >= 0 ? Integer.toString(logIndex) : null);
+    }
+
+    private static int logIndex() {
+        return connId != 0 ? connId : stripe;
+    }
+
+    private static void initSession() throws IOException {
+        session = new SenderSession(hostIa, sendPort, receivePort, selectiveRepeat, connId, nio);
+        session.setExtended(extended);
+        session.setCompression(compress);
+        session.setFecGroup(fecGroup);
+        session.setMaxPayload(maxPayload);
+        // the range offset is sent to the receiver with the SYN
+        if (stripe >= 0) session.setOffset(rangeStart);
+        session.setCongestionControl(ccEnabled, maxWindowOption);
+        session.setDupAckThreshold(dupAckThreshold);
+        if (pacing) session.setPacing(paceRate);
+        session.setRto(initialRto, minRto);
+        session.setMetrics(metrics);
+        if (log) session.openLogs(logIndex());
     }
 
     /**
-     * sends packets in the current window frame
-     * @throws IOException
+     * negotiates the header format and window, failing if the receiver of a stripe or connection does not answer
+     * the SYN, since it cannot take the 32-modulo header the session falls back to
+     * @throws Exception
      */
-    private static void sendWindow() throws IOException {
-        // start timer
-        if (timer != null) timer.cancel();
-        timer = new Timer();
-        timer.schedule(new TimerTask() {
-            @Override
-            public void run() {
-                try {
-                    // timeout, reset sentHi to the end of last window and resend current window
-                    sentHi = windowBase - 1;
-                    sendWindow();
-                } catch (IOException e) {
-                    // swallow
-                }
-            }
-        }, 100);
-
-        for (int i = 0; i < WINDOW_SIZE; i++) {
-            sendSingle(windowBase + i);
+    private static void initWindow() throws Exception {
+        if (!session.connect()) {
+            if (stripe >= 0) throw new Exception("Receiver of stripe " + stripe + " did not answer");
+            // a receiver serving many transfers ignores packets without a connection id
+            if (connId != 0) throw new Exception("Receiver of connection " + connId + " did not answer");
         }
+
+        extended = session.isExtended();
+        compress = session.isCompressed();
+        dataSize = session.getDataSize();
+        maxWindow = session.getMaxWindow();
     }
 
     /**
-     * sends single packet
-     * @param idx packet index
-     * @throws IOException
+     * resumable transfers only, asks the receiver for the offset of its checkpoint and sends the file from there
+     * @throws Exception if the receiver does not answer or resumes past the end of the file
      */
-    private static void sendSingle(int idx) throws IOException {
-        // if idx out of bound or if idx is already sent
-        if (idx >= packets.size() || idx <= sentHi) {
+    private static void initResume() throws Exception {
+        session.setFileCrc(CompletableFuture.supplyAsync(() -> {
+            try {
+                return Checkpoint.crc32(fileName);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }));
+
+        rangeStart = session.queryResume();
+        if (rangeStart < 0 || rangeStart > Files.size(Paths.get(fileName))) {
+            throw new Exception("Receiver resumes past the end of the file");
+        }
+    }
+
+    static void initPackets() throws Exception {
+        // packets are deflated from the file as they are needed, there is no fixed mapping of file bytes to packets
+        if (compress) {
+            packets = new StreamingPacketSource(fileName, rangeStart, rangeLength, maxWindow, dataSize,
+                    extended, connId, new Deflater(compressLevel), hostIa, sendPort);
             return;
         }
 
-        // send and audit
-        sendSocket.send(packets.get(idx));
-        sentHi = idx;
-        seqWriter.println(idx % SeqNumModulo);
-    }
+        // packets are encoded from their slice of the mapped file when they are first sent
+        if (mapped) {
+            packets = new MappedPacketSource(fileName, rangeStart, rangeLength, maxWindow, dataSize, extended,
+                    connId, hostIa, sendPort);
+            return;
+        }
+
+        // only the packets ahead of windowBase are read and encoded
+        if (streaming) {
+            packets = new StreamingPacketSource(fileName, rangeStart, rangeLength, maxWindow, dataSize,
+                    extended, connId, null, hostIa, sendPort);
+            return;
+        }
 
-    private static void waitAck() throws Exception {
-        while (windowBase < packets.size()) {
-            packet receivePacket = waitForPacket();
-
-            if (receivePacket.getType() == 0) { // if received an ACK packet
-                // get seqNum and audit
-                int seqNum = receivePacket.getSeqNum();
-                ackWriter.println(seqNum);
-
-                // if in correct order, send next packet
-                if (seqNum >= windowBase % SeqNumModulo) { // if ack and windowBase are on the same page
-                    windowBase -= windowBase % SeqNumModulo;
-                    windowBase += seqNum + 1;
-                    sendWindow();
-                } else if (seqNum <= WINDOW_SIZE &&
-                        windowBase % SeqNumModulo >= SeqNumModulo - WINDOW_SIZE) {
-                    // if ack is on the next page while winBase is still on the current page
-                    windowBase = ((int) Math.ceil(windowBase / SeqNumModulo)) * SeqNumModulo + seqNum + 1;
-                    sendWindow();
-                }
-            } else {
-                throw new Exception("Received invalid packet");
+        FileChannel channel = null;
+        try {
+            channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ);
+            channel.position(rangeStart);
+            long remaining = rangeLength;
+
+            final List<DatagramPacket> packetList = new ArrayList<>();
+            packets = idx -> idx < packetList.size() ? packetList.get(idx) : null;
+
+            int headerLength = PacketCodec.headerLength(extended, connId);
+            int seqNum = 0;
+            // divide file into packets, reading each chunk straight behind its header
+            while (true) {
+                ByteBuffer buf = ByteBuffer.allocate(headerLength + dataSize);
+                buf.position(headerLength).limit(headerLength + (int) Math.min(dataSize, remaining));
+                int length = PacketSource.readChunk(channel, buf);
+                remaining -= length;
+                if (length == 0) break;
+
+                int udpLength = PacketCodec.encodeHeader(buf, PacketCodec.TYPE_DATA, seqNum, length, extended, 0,
+                        connId);
+                packetList.add(new DatagramPacket(buf.array(), udpLength, hostIa, sendPort));
+                seqNum++;
+
+                if (length < dataSize) break;
             }
+        } finally {
+            if (channel != null) channel.close();
         }
     }
 
     /**
-     * sends EOT and close both send and receive sockets
-     * @throws Exception
+     * @return current retransmission timeout in milliseconds
      */
-    private static void closeConnection() throws Exception {
-        if (timer != null) timer.cancel();
-
-        // send EOT and close send socket
-        byte[] udpBytes = packet.createEOT(packets.size()).getUDPdata();
-        sendSocket.send(new DatagramPacket(udpBytes, udpBytes.length, hostIa, sendPort));
-        sendSocket.close();
-
-        // wait for EOT's ACK and close receive socket
-        while (true) {
-            packet receivePacket = waitForPacket();
-            if (receivePacket.getType() == 2) { // if received EOT packet
-                receiveSocket.close();
-                return;
-            }
-        }
+    public static long getRto() {
+        return session.getRto();
     }
 
-    private static packet waitForPacket() throws Exception {
-        byte[] receiveBuffer = new byte[PACKET_SIZE];
-        DatagramPacket receiveDp = new DatagramPacket(receiveBuffer, PACKET_SIZE);
-        receiveSocket.receive(receiveDp);
-        return packet.parseUDPdata(receiveDp.getData());
+    /**
+     * @return smoothed round trip time in milliseconds, or -1 before the first sample
+     */
+    public static double getSrtt() {
+        return session.getSrtt();
     }
 
-    private static void closeLogger() {
-        seqWriter.close();
-        ackWriter.close();
+    private static void closeLogger() throws IOException {
+        session.closeLogs();
+
+        try (PrintWriter metricsWriter = new PrintWriter(Stripes.logName(LOG_FILE_METRICS, logIndex()), "UTF-8")) {
+            metricsWriter.println(metrics.summary());
+        }
+        if (traceRecords > 0) metrics.dumpTrace(Stripes.logName(LOG_FILE_TRACE, logIndex()));
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,226 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * sending side of one transfer as a WritableByteChannel, so that a service can run any number of transfers in one
+ * JVM instead of starting a {@link Sender} process per file. Written bytes are cut into full data packets that a
+ * {@link SenderSession} sends as soon as the window allows, and {@link #close()} sends the last partial packet, waits
+ * until everything is acked and ends the transfer with an EOT. A write blocks while the window is full.
+ *
+ * The channel always uses the extended header, negotiated with a SYN by the constructor, and otherwise whatever
+ * the session was set up with, e.g. Go-Back-N or Selective Repeat, congestion control, pacing, forward error
+ * correction or longer packets. With a connection id it works with a {@link ReceiverServer} as well as with a
+ * {@link Receiver}.
+ *
+ * threading model: write, flush and close are called by one owner thread and hold the session's lock, which also
+ * guards the packets written so far. The session runs on a thread of its own
+ */
+public class SenderChannel implements WritableByteChannel {
+
+    private final SenderSession session;
+    private final Thread senderThread;
+    private final int headerLength;
+    private final int dataSize;
+
+    // indexed by slot, which is packet index % length. A slot is filled by write and reused once its packet is acked
+    private final DatagramPacket[] datagrams;
+    private int nextIdx; // index of the packet being filled, every packet below it is complete
+    private int fill; // data bytes in the packet being filled
+    private boolean complete; // close has queued the last packet
+    private boolean open = true;
+
+    public SenderChannel(InetAddress host, int sendPort, int receivePort, boolean selectiveRepeat)
+            throws IOException {
+        this(host, sendPort, receivePort, selectiveRepeat, 0, SenderSession.DEFAULT_MAX_WINDOW);
+    }
+
+    /**
+     * binds the receiving port and negotiates the extended header with the receiver
+     * @param host address of the receiver, or of the emulator in front of it
+     * @param sendPort port the receiver receives data on
+     * @param receivePort port to receive acks on, 0 for any free port, which only a ReceiverServer can ack to
+     * @param connId connection id sent in every packet, 0 for none
+     * @param maxWindow largest number of packets outstanding, bounded by the window the receiver advertises, which
+     *                  is also the number of packet buffers
+     * @throws IOException if the port cannot be bound or the receiver does not answer the SYN
+     */
+    public SenderChannel(InetAddress host, int sendPort, int receivePort, boolean selectiveRepeat, int connId,
+                         int maxWindow) throws IOException {
+        this(newSession(host, sendPort, receivePort, selectiveRepeat, connId, maxWindow));
+    }
+
+    /**
+     * negotiates the extended header with the receiver and starts the session
+     * @param session session that is not connected yet, without compression, which needs the whole file
+     * @throws IOException if the receiver does not answer the SYN
+     */
+    public SenderChannel(SenderSession session) throws IOException {
+        this.session = session;
+        session.setExtended(true);
+        session.setCompression(false);
+        try {
+            if (!session.connect()) throw new IOException("Receiver did not answer");
+        } catch (IOException e) {
+            session.close();
+            throw e;
+        }
+
+        headerLength = PacketCodec.headerLength(true, session.getConnId());
+        dataSize = session.getDataSize();
+        datagrams = new DatagramPacket[session.getMaxWindow()];
+        for (int i = 0; i < datagrams.length; i++) {
+            datagrams[i] = new DatagramPacket(new byte[headerLength + dataSize], 0, session.getHost(),
+                    session.getSendPort());
+        }
+        session.setPackets(new PacketSource() {
+            @Override
+            public DatagramPacket get(int idx) {
+                return idx < nextIdx ? datagrams[idx % datagrams.length] : null;
+            }
+
+            @Override
+            public boolean isComplete() {
+                return complete;
+            }
+        });
+
+        senderThread = new Thread(this::runSession, "sender");
+        senderThread.setDaemon(true);
+        senderThread.start();
+    }
+
+    private static SenderSession newSession(InetAddress host, int sendPort, int receivePort, boolean selectiveRepeat,
+                                            int connId, int maxWindow) throws IOException {
+        if (maxWindow < 1) throw new IllegalArgumentException("Invalid window " + maxWindow);
+        SenderSession session = new SenderSession(host, sendPort, receivePort, selectiveRepeat, connId);
+        session.setCongestionControl(true, maxWindow);
+        return session;
+    }
+
+    /**
+     * @return figures of this transfer, which the caller may publish with {@link TransferMetrics#register}
+     */
+    public TransferMetrics getMetrics() {
+        return session.getMetrics();
+    }
+
+    @Override
+    public boolean isOpen() {
+        synchronized (session) {
+            return open;
+        }
+    }
+
+    /**
+     * copies all of src into packets, sending each one as soon as it is full and the window allows
+     * @param src bytes to send
+     * @return number of bytes taken, always all remaining bytes of src
+     * @throws IOException if the transfer has failed
+     */
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        synchronized (session) {
+            if (!open) throw new ClosedChannelException();
+
+            int total = src.remaining();
+            while (src.hasRemaining()) {
+                // the slot of the packet being filled is free once the packet a full window before it is acked
+                awaitWindow(nextIdx - datagrams.length + 1);
+
+                DatagramPacket dp = datagrams[nextIdx % datagrams.length];
+                int n = Math.min(src.remaining(), dataSize - fill);
+                src.get(dp.getData(), headerLength + fill, n);
+                fill += n;
+                if (fill == dataSize) queuePacket();
+            }
+            return total;
+        }
+    }
+
+    /**
+     * sends the data written so far as a packet of its own instead of waiting for the packet to fill up
+     * @throws IOException if the transfer has failed
+     */
+    public void flush() throws IOException {
+        synchronized (session) {
+            if (!open) throw new ClosedChannelException();
+            awaitWindow(0);
+            if (fill > 0) queuePacket();
+        }
+    }
+
+    /**
+     * sends the rest of the data and the EOT and waits for both to be acked
+     * @throws IOException if the transfer has failed, including when the EOT is never acked, since the receiver
+     * may not have all of the data then
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (session) {
+            if (!open) return;
+            open = false;
+
+            try {
+                awaitWindow(0);
+                if (fill > 0) queuePacket();
+                complete = true;
+                session.send();
+                session.awaitEot();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            } catch (IOException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new IOException("Transfer failed", e);
+            } finally {
+                session.close();
+            }
+        }
+    }
+
+    /**
+     * waits until windowBase reaches idx
+     * @param idx packet index
+     * @throws IOException if the transfer fails meanwhile
+     */
+    private void awaitWindow(int idx) throws IOException {
+        try {
+            session.awaitWindow(idx);
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        } catch (Exception e) {
+            throw new IOException("Transfer failed", e);
+        }
+    }
+
+    /**
+     * completes the packet being filled and hands it to the session, which sends it if the window allows
+     * @throws IOException
+     */
+    private void queuePacket() throws IOException {
+        DatagramPacket dp = datagrams[nextIdx % datagrams.length];
+        int udpLength = PacketCodec.encodeHeader(ByteBuffer.wrap(dp.getData()), PacketCodec.TYPE_DATA, nextIdx, fill,
+                true, 0, session.getConnId());
+        dp.setLength(udpLength);
+        nextIdx++;
+        fill = 0;
+        session.send();
+    }
+
+    /**
+     * sender thread, runs the session until the EOT is acked or the transfer fails, which the session keeps for the
+     * owner thread to see
+     */
+    private void runSession() {
+        try {
+            session.run();
+        } catch (Exception e) {
+            // recorded by the session
+        }
+    }
+}
@@ -0,0 +1,1274 @@
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * sending side of a single transfer: SYN negotiation, Go-Back-N or Selective Repeat window, adaptive retransmission
+ * timeout, congestion control, pacing, parity and EOT. It sends the packets of a {@link PacketSource} and is driven by
+ * the {@link Sender}, whose source is a file, or by a {@link SenderChannel}, whose source grows as it is written to.
+ * Options are set before {@link #connect()}, the source after it, and {@link #run()} then runs the transfer
+ *
+ * threading model: all protocol state is guarded by the session's lock, which the thread in run holds while handling
+ * a packet, the timer thread holds while handling an expiry and the owner of a growing source holds while adding to
+ * it. With nio the timer has no thread of its own and run handles everything
+ */
+public class SenderSession {
+
+    public static final int DEFAULT_MAX_WINDOW = 65536;
+    static final long INITIAL_RTO = 100;
+    static final long MIN_RTO = 5;
+    static final int DUP_ACK_THRESHOLD = 3;
+
+    private static final int WINDOW_SIZE = 10;
+    private static final int SeqNumModulo = 32;
+    private static final int DATA_SIZE = PacketCodec.MAX_DATA_LENGTH;
+
+    private static final long MAX_RTO = 60000;
+    private static final int MAX_EOT_ATTEMPTS = 10;
+    // timeouts in a row without the window moving, after which the transfer fails instead of retrying forever, e.g.
+    // to a receiver that has exited. As the timeout doubles each time, that is about 25 s from the initial one
+    private static final int MAX_TIMEOUTS = 8;
+
+    private static final int INITIAL_CWND = 1;
+    // largest window the receiver can take: go-back-n is bounded by half the sequence number space so that a
+    // reordered packet or ack from the previous window is never mistaken for one of the current window, while
+    // selective repeat is bounded by the receiver's reorder buffer
+    private static final int MAX_WINDOW_GBN = SeqNumModulo / 2;
+    private static final int MAX_WINDOW_SR = WINDOW_SIZE;
+    private static final int MAX_SYN_ATTEMPTS = 5;
+    // a longer data length is probed from the longest the receiver accepts down through these common MTUs, and each
+    // size gets this many attempts before it counts as lost. MAX_DATA_LENGTH is never probed
+    private static final int[] PROBE_MTUS = {9000, 1500};
+    private static final int MAX_PROBE_ATTEMPTS = 3;
+    // asked of the OS for the sending socket, which needs room for a window of long datagrams
+    private static final int SOCKET_BUFFER_SIZE = 4 * 1024 * 1024;
+
+    private static final String LOG_FILE_SEQ = "seqnum.log";
+    private static final String LOG_FILE_ACK = "ack.log";
+    private static final String LOG_FILE_RTT = "rtt.log";
+    private static final String LOG_FILE_CWND = "cwnd.log";
+    private static final String LOG_FILE_PACE = "pace.log";
+
+    private final InetAddress host;
+    private final int sendPort;
+    private final boolean selectiveRepeat;
+    private final int connId; // tells this transfer apart at a receiver serving many of them, 0 if none
+    private final boolean nio;
+
+    // options, set before connect
+    private boolean extended; // 32-bit sequence numbers, offered with a SYN and used once the receiver answers
+    private boolean compress; // the source deflates the data, once accepted by the receiver
+    private int fecGroup; // one parity packet follows every fecGroup new data packets, 0 if off
+    private int maxPayload = DATA_SIZE; // longest data of a packet to offer the receiver
+    private long offset = -1; // striped transfers only, offset of the range sent with the SYN
+    private CompletableFuture<Long> fileCrc; // resumable transfers only, sent with the EOT
+    private boolean ccEnabled = true;
+    private int maxWindowOption = DEFAULT_MAX_WINDOW;
+    private int dupAckThreshold = DUP_ACK_THRESHOLD; // 0 if duplicate acks neither retransmit nor shrink the window
+    private boolean pacing;
+    private int paceRate; // packets per second, 0 to spread each window over the smoothed RTT
+    private RttEstimator rtt = new RttEstimator(INITIAL_RTO, MIN_RTO, MAX_RTO);
+    private TransferMetrics metrics = new TransferMetrics();
+
+    // seqnum, ack, rtt, cwnd and pace logs, null unless openLogs was called
+    private PrintWriter seqWriter, ackWriter, rttWriter, cwndWriter, paceWriter;
+
+    private int dataSize = DATA_SIZE; // data bytes per packet, as negotiated and probed
+    private int maxWindow; // capacity of all per slot arrays, slots are packet index % maxWindow
+    private int rcvWindow; // window advertised in the receiver's latest ack
+
+    private final DatagramSocket sendSocket, receiveSocket;
+    // nio only, sendSocket and receiveSocket are adaptors of these channels until the event loop starts
+    private DatagramChannel sendChannel, receiveChannel;
+    private InetSocketAddress receiverAddress;
+    private Selector selector;
+
+    // only touched by the thread in run, or in connect before it
+    private final ByteBuffer receiveBuffer = ByteBuffer.allocate(PacketCodec.MAX_UDP_LENGTH);
+    private final DatagramPacket receiveDp = new DatagramPacket(receiveBuffer.array(), receiveBuffer.capacity());
+    private final PacketCodec.Header receiveHeader = new PacketCodec.Header();
+
+    private PacketSource packets;
+    private TimerService timer;
+
+    private int windowBase;
+    private int sentHi = -1; // highest index of packet that has been sent in the current window
+    private int maxSentIdx = -1; // highest index of packet that has ever been sent
+
+    // indexed by slot, retransmitted packets are never sampled (Karn's rule)
+    private long[] sendTimes;
+    private boolean[] retransmitted;
+    private int[] dataLengths; // counted as goodput once acked
+
+    // null if the window is fixed at WINDOW_SIZE
+    private CongestionControl cc;
+    // go-back-n: consecutive acks for windowBase - 1. Selective repeat: acks for packets above windowBase while
+    // windowBase is unacked. Reset when windowBase moves
+    private int dupAcks;
+
+    // counts every datagram sent, and holds back new packets until their slot if pacing is on
+    private final Pacer pacer = new Pacer();
+    private int pacingKey; // timer key that releases held back packets
+    private long startTime;
+
+    // selective repeat only, indexed by slot, which is also the packet's timer key
+    private boolean[] acked;
+
+    // forward error correction only
+    private ByteBuffer parityBuffer;
+    private DatagramPacket parityDp;
+    private int parityStart; // index of the first packet of the group being accumulated
+    private int parityCount; // packets accumulated so far
+    private int parityLengths; // xor of their data lengths
+    private int parityMaxLength;
+
+    private boolean closing; // EOT has been sent
+    private boolean eotAcked;
+    private DatagramPacket eotDp;
+    private int eotAttempts;
+    private int timeouts; // in a row, reset when the window moves
+    private Exception failure; // set once the session gives up on the receiver
+
+    public SenderSession(InetAddress host, int sendPort, int receivePort, boolean selectiveRepeat, int connId)
+            throws IOException {
+        this(host, sendPort, receivePort, selectiveRepeat, connId, false);
+    }
+
+    /**
+     * binds the receiving port
+     * @param host address of the receiver, or of the emulator in front of it
+     * @param sendPort port the receiver receives data on
+     * @param receivePort port to receive acks on, 0 for any free port, which only a ReceiverServer can ack to
+     * @param connId connection id sent in every packet, 0 for none. With a connection id the packets are sent from
+     *               the receiving port, since a receiver serving many transfers acks to the port they come from
+     * @param nio true to run the transfer on a single thread that waits in a Selector on non-blocking channels,
+     *            instead of a blocking receive loop plus a timer thread
+     * @throws IOException if the port cannot be bound
+     */
+    public SenderSession(InetAddress host, int sendPort, int receivePort, boolean selectiveRepeat, int connId,
+                         boolean nio) throws IOException {
+        this.host = host;
+        this.sendPort = sendPort;
+        this.selectiveRepeat = selectiveRepeat;
+        this.connId = connId;
+        this.nio = nio;
+        this.extended = connId != 0;
+
+        if (nio) {
+            receiveChannel = DatagramChannel.open().bind(new InetSocketAddress(receivePort));
+            sendChannel = connId != 0 ? receiveChannel : DatagramChannel.open();
+            receiverAddress = new InetSocketAddress(host, sendPort);
+
+            // blocking adaptors for the SYN exchange, which happens before the event loop starts
+            sendSocket = sendChannel.socket();
+            receiveSocket = receiveChannel.socket();
+        } else {
+            receiveSocket = new DatagramSocket(receivePort);
+            sendSocket = connId != 0 ? receiveSocket : new DatagramSocket();
+        }
+    }
+
+    /**
+     * offers the extended header with a SYN in connect. A session with a connection id always does
+     */
+    public void setExtended(boolean extended) {
+        this.extended = extended || connId != 0;
+    }
+
+    /**
+     * offers compression with the SYN, implies the extended header. The source must deflate the data if
+     * {@link #isCompressed()} once connected
+     */
+    public void setCompression(boolean compress) {
+        this.compress = compress;
+        if (compress) extended = true;
+    }
+
+    /**
+     * offers forward error correction with the SYN, implies the extended header
+     * @param fecGroup data packets per parity packet, 0 for none
+     */
+    public void setFecGroup(int fecGroup) {
+        this.fecGroup = fecGroup;
+        if (fecGroup > 0) extended = true;
+    }
+
+    /**
+     * offers data packets of up to maxPayload bytes with the SYN, which implies the extended header if it is above
+     * MAX_DATA_LENGTH. The source must use {@link #getDataSize()} once connected
+     * @param maxPayload longest data of a packet
+     */
+    public void setMaxPayload(int maxPayload) {
+        this.maxPayload = maxPayload;
+        this.dataSize = Math.min(maxPayload, DATA_SIZE);
+        if (maxPayload > DATA_SIZE) extended = true;
+    }
+
+    /**
+     * striped transfers only, sends the offset of the range with the SYN, implies the extended header
+     * @param offset offset of the range in the file
+     */
+    public void setOffset(long offset) {
+        this.offset = offset;
+        extended = true;
+    }
+
+    /**
+     * resumable transfers only, sends the CRC-32 of the whole file with the EOT and fails the transfer if the
+     * receiver's EOT carries a different one
+     * @param fileCrc CRC-32 of the file, which may still be being computed
+     */
+    public void setFileCrc(CompletableFuture<Long> fileCrc) {
+        this.fileCrc = fileCrc;
+    }
+
+    /**
+     * @param enabled true for AIMD congestion control, false for a fixed window of WINDOW_SIZE packets
+     * @param maxWindow upper bound of the window, which is also offered to the receiver
+     */
+    public void setCongestionControl(boolean enabled, int maxWindow) {
+        this.ccEnabled = enabled;
+        this.maxWindowOption = maxWindow;
+    }
+
+    /**
+     * @param dupAckThreshold duplicate acks that trigger a fast retransmit, 0 for none
+     */
+    public void setDupAckThreshold(int dupAckThreshold) {
+        this.dupAckThreshold = dupAckThreshold;
+    }
+
+    /**
+     * spreads new packets evenly instead of sending the window back to back
+     * @param rate packets per second, or 0 to spread each window over the smoothed RTT
+     */
+    public void setPacing(int rate) {
+        pacing = true;
+        paceRate = rate;
+        if (rate > 0) pacer.setInterval(1000000000L / rate);
+    }
+
+    /**
+     * @param initialRto retransmission timeout in ms before the first RTT sample
+     * @param minRto lower bound of the adaptive retransmission timeout in ms
+     */
+    public void setRto(long initialRto, long minRto) {
+        rtt = new RttEstimator(initialRto, minRto, MAX_RTO);
+    }
+
+    /**
+     * records the session's figures in metrics instead of a private instance. Must be called before connect
+     * @param metrics metrics
+     */
+    public void setMetrics(TransferMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public TransferMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * opens the seqnum, ack, rtt, cwnd and pace logs
+     * @param logIndex index in the log names, e.g. seqnum.&lt;index&gt;.log, or -1 for none
+     * @throws IOException
+     */
+    public void openLogs(int logIndex) throws IOException {
+        seqWriter = new PrintWriter(Stripes.logName(LOG_FILE_SEQ, logIndex), "UTF-8");
+        ackWriter = new PrintWriter(Stripes.logName(LOG_FILE_ACK, logIndex), "UTF-8");
+        rttWriter = new PrintWriter(Stripes.logName(LOG_FILE_RTT, logIndex), "UTF-8");
+        cwndWriter = new PrintWriter(Stripes.logName(LOG_FILE_CWND, logIndex), "UTF-8");
+        paceWriter = new PrintWriter(Stripes.logName(LOG_FILE_PACE, logIndex), "UTF-8");
+    }
+
+    /**
+     * closes the logs opened by openLogs, if any, and adds the send counters to the pace log
+     */
+    public void closeLogs() {
+        if (seqWriter == null) return;
+        seqWriter.close();
+        ackWriter.close();
+        rttWriter.close();
+        cwndWriter.close();
+        paceWriter.println(pacer.summary());
+        paceWriter.close();
+    }
+
+    /**
+     * resumable transfers only, asks the receiver for the offset of its checkpoint with a RESUME packet, whose
+     * seqnum is a nonce that tells this sender's query apart from a previous sender's. Must be called before connect
+     * @return offset the receiver continues from
+     * @throws IOException if the receiver does not answer after MAX_SYN_ATTEMPTS
+     */
+    public long queryResume() throws IOException {
+        int nonce = ThreadLocalRandom.current().nextInt();
+        DatagramPacket query = encodeControl(PacketCodec.TYPE_RESUME, nonce, 0);
+        try {
+            for (int attempt = 0; attempt < MAX_SYN_ATTEMPTS; attempt++) {
+                sendSocket.send(query);
+                receiveSocket.setSoTimeout((int) rtt.getRto());
+                try {
+                    PacketCodec.Header receiveHeader = waitForPacket();
+                    if (receiveHeader.type == PacketCodec.TYPE_RESUME && receiveHeader.seqNum == nonce
+                            && receiveHeader.length >= 8) {
+                        return receiveBuffer.getLong(receiveHeader.dataOffset);
+                    }
+                } catch (SocketTimeoutException e) {
+                    rtt.backoff();
+                }
+            }
+            throw new IOException("Receiver did not answer the resume query");
+        } finally {
+            receiveSocket.setSoTimeout(0);
+            rtt.resetBackoff();
+        }
+    }
+
+    /**
+     * sizes the window from the header format, negotiating the extended header and the options that need it with a
+     * SYN first if it was requested. If the receiver does not answer the SYN, e.g. because it was started late, the
+     * session falls back to the 32-modulo header. A receiver from before the extended header exits on the SYN
+     * instead, and the transfer then fails after MAX_TIMEOUTS
+     * @return false if the receiver did not answer the SYN
+     * @throws IOException
+     */
+    public boolean connect() throws IOException {
+        boolean answered = true;
+        int protocolMaxWindow = selectiveRepeat ? MAX_WINDOW_SR : MAX_WINDOW_GBN;
+        if (extended) {
+            int advertised = negotiate(maxWindowOption);
+            if (advertised > 0) {
+                protocolMaxWindow = Math.min(DEFAULT_MAX_WINDOW, advertised);
+                if (dataSize > DATA_SIZE) probeDataSize();
+            } else {
+                answered = false;
+                extended = false;
+                compress = false;
+                fecGroup = 0;
+                dataSize = Math.min(maxPayload, DATA_SIZE);
+            }
+        }
+
+        if (ccEnabled) {
+            maxWindow = Math.min(maxWindowOption, protocolMaxWindow);
+            cc = new CongestionControl(INITIAL_CWND, maxWindow);
+        } else {
+            maxWindow = Math.min(WINDOW_SIZE, protocolMaxWindow);
+        }
+        rcvWindow = maxWindow;
+
+        sendTimes = new long[maxWindow];
+        retransmitted = new boolean[maxWindow];
+        dataLengths = new int[maxWindow];
+        if (selectiveRepeat) acked = new boolean[maxWindow];
+        if (fecGroup > 0) parityBuffer = ByteBuffer.allocate(PacketCodec.CONN_HEADER_LENGTH + dataSize);
+
+        // one key per retransmission timer, plus one for pacing
+        pacingKey = selectiveRepeat ? maxWindow : 1;
+        if (nio) {
+            timer = new DeadlineTimerService(pacingKey + 1, this, this::onTimeout);
+        } else {
+            timer = new ScheduledTimerService(pacingKey + 1, this, this::onTimeout);
+        }
+        return answered;
+    }
+
+    /**
+     * @return true if the extended header is in use
+     */
+    public boolean isExtended() {
+        return extended;
+    }
+
+    /**
+     * @return true if the receiver accepted compression
+     */
+    public boolean isCompressed() {
+        return compress;
+    }
+
+    /**
+     * @return data bytes per packet, as negotiated and probed
+     */
+    public int getDataSize() {
+        return dataSize;
+    }
+
+    /**
+     * @return largest number of packets outstanding at once. A source need not keep packets below windowBase
+     */
+    public int getMaxWindow() {
+        return maxWindow;
+    }
+
+    public InetAddress getHost() {
+        return host;
+    }
+
+    public int getSendPort() {
+        return sendPort;
+    }
+
+    public int getConnId() {
+        return connId;
+    }
+
+    /**
+     * @param packets packets to send, in the header format and data size negotiated by connect
+     */
+    public synchronized void setPackets(PacketSource packets) {
+        this.packets = packets;
+    }
+
+    /**
+     * @return current retransmission timeout in milliseconds
+     */
+    public synchronized long getRto() {
+        return rtt.getRto();
+    }
+
+    /**
+     * @return smoothed round trip time in milliseconds, or -1 before the first sample
+     */
+    public synchronized double getSrtt() {
+        return rtt.getSrtt();
+    }
+
+    /**
+     * runs the transfer on the calling thread until the EOT is acked, then closes the sockets. The EOT is sent once
+     * the source is complete and every packet is acked
+     * @throws Exception if the transfer failed
+     */
+    public void run() throws Exception {
+        synchronized (this) {
+            startTime = System.nanoTime();
+            metrics.start();
+            logCwnd();
+        }
+
+        try {
+            if (nio) {
+                runEventLoop();
+            } else {
+                runBlocking();
+            }
+        } catch (Exception e) {
+            synchronized (this) {
+                if (failure == null) failure = e;
+                notifyAll();
+            }
+        } finally {
+            close();
+        }
+
+        synchronized (this) {
+            if (failure != null) throw failure;
+        }
+    }
+
+    /**
+     * stops the timer and closes the sockets, which ends a run on another thread. run does this itself once done
+     */
+    public synchronized void close() {
+        if (timer != null) timer.shutdown();
+        sendSocket.close();
+        receiveSocket.close();
+    }
+
+    /**
+     * sends what the window allows of the packets that have not been sent yet, and the EOT once the source is
+     * complete and every packet is acked. Called by the owner of a source that grows while the transfer runs, which
+     * adds packets with the session's lock held
+     * @throws IOException
+     */
+    public synchronized void send() throws IOException {
+        if (closing || failure != null) return;
+        sendNew();
+        closeIfDone();
+    }
+
+    /**
+     * waits until windowBase reaches idx, e.g. until the slot of a growing source's next packet is free
+     * @param idx packet index
+     * @throws Exception if the transfer failed meanwhile
+     */
+    public synchronized void awaitWindow(int idx) throws Exception {
+        while (windowBase < idx && failure == null) {
+            wait();
+        }
+        if (failure != null) throw failure;
+    }
+
+    /**
+     * waits until the EOT is acked
+     * @throws Exception if the transfer failed instead
+     */
+    public synchronized void awaitEot() throws Exception {
+        while (!eotAcked && failure == null) {
+            wait();
+        }
+        if (failure != null) throw failure;
+    }
+
+    /**
+     * blocking engine, receives and handles acks on the calling thread while the timer thread handles expiries
+     * @throws Exception
+     */
+    private void runBlocking() throws Exception {
+        synchronized (this) {
+            sendWindow();
+            closeIfDone();
+        }
+
+        try {
+            while (true) {
+                PacketCodec.Header receiveHeader = waitForPacket();
+                synchronized (this) {
+                    handlePacket(receiveHeader);
+                    if (eotAcked) return;
+                    closeIfDone();
+                }
+            }
+        } catch (SocketException e) {
+            // fail closes the receive socket once it gives up on the receiver
+            synchronized (this) {
+                if (failure == null) throw e;
+            }
+        }
+    }
+
+    /**
+     * nio engine, sends the packets, then the EOT, on a single thread that waits in a Selector for acks or for the
+     * next retransmission deadline. No other thread touches the protocol state, unless the source grows
+     * @throws Exception
+     */
+    private void runEventLoop() throws Exception {
+        DeadlineTimerService deadlines = (DeadlineTimerService) timer;
+
+        sendChannel.configureBlocking(false);
+        receiveChannel.configureBlocking(false);
+        selector = Selector.open();
+        receiveChannel.register(selector, SelectionKey.OP_READ);
+
+        try {
+            synchronized (this) {
+                sendWindow();
+                closeIfDone();
+            }
+            while (true) {
+                long wait;
+                synchronized (this) {
+                    if (eotAcked || failure != null) break;
+                    wait = deadlines.millisUntilNext();
+                }
+                if (wait == 0) {
+                    selector.selectNow();
+                } else {
+                    selector.select(Math.max(wait, 0));
+                }
+                selector.selectedKeys().clear();
+
+                synchronized (this) {
+                    // drain every queued datagram before looking at the deadlines
+                    while (true) {
+                        receiveBuffer.clear();
+                        if (receiveChannel.receive(receiveBuffer) == null) break;
+                        if (!PacketCodec.decode(receiveBuffer, receiveBuffer.position(), receiveHeader)) {
+                            throw new Exception("Received invalid packet");
+                        }
+                        handlePacket(receiveHeader);
+                    }
+                    deadlines.expire();
+                    closeIfDone();
+                }
+            }
+        } finally {
+            selector.close();
+        }
+    }
+
+    /**
+     * starts closing once the source is complete and every packet is acked
+     * @throws IOException
+     */
+    private void closeIfDone() throws IOException {
+        if (!closing && failure == null && packets.isComplete() && !hasUnacked()) {
+            packets.close();
+            startClosing(encodeEot());
+        }
+    }
+
+    /**
+     * offers the extended header to the receiver, receivers that understand it answer with a SYN of their own. A
+     * stripe's SYN carries the offset of its range as 8 bytes of data. Compression is offered with COMPRESSED_FLAG
+     * and forward error correction with FEC_FLAG and the group size as seqnum, each is only used if the receiver's
+     * SYN sets the flag too. A data length above MAX_DATA_LENGTH is offered with PAYLOAD_FLAG and 4 bytes of data
+     * after the offset, and the receiver's SYN answers with the longest it accepts
+     * @param window largest window the sender wants to use
+     * @return window advertised by the receiver, or -1 if it did not answer after MAX_SYN_ATTEMPTS
+     * @throws IOException
+     */
+    private int negotiate(int window) throws IOException {
+        boolean offerPayload = maxPayload > DATA_SIZE;
+        ByteBuffer data = ByteBuffer.allocate((offset >= 0 ? 8 : 0) + (offerPayload ? 4 : 0));
+        if (offset >= 0) data.putLong(offset);
+        if (offerPayload) data.putInt(maxPayload);
+        data.flip();
+        int type = PacketCodec.TYPE_SYN;
+        if (compress) type |= PacketCodec.COMPRESSED_FLAG;
+        if (fecGroup > 0) type |= PacketCodec.FEC_FLAG;
+        if (offerPayload) type |= PacketCodec.PAYLOAD_FLAG;
+        DatagramPacket syn = encodeControl(type, fecGroup, window, data.hasRemaining() ? data : null);
+
+        try {
+            for (int attempt = 0; attempt < MAX_SYN_ATTEMPTS; attempt++) {
+                long sendTime = System.nanoTime();
+                sendSocket.send(syn);
+                receiveSocket.setSoTimeout((int) rtt.getRto());
+                try {
+                    PacketCodec.Header receiveHeader = waitForPacket();
+                    if (receiveHeader.type == PacketCodec.TYPE_SYN) {
+                        // only the first SYN is unambiguous (Karn's rule)
+                        if (attempt == 0) rtt.addSample((System.nanoTime() - sendTime) / 1e6);
+                        compress = compress && receiveHeader.compressed;
+                        if (!receiveHeader.fec) fecGroup = 0;
+                        dataSize = DATA_SIZE;
+                        if (receiveHeader.payload && receiveHeader.length >= 4) {
+                            int accepted = receiveBuffer.getInt(receiveHeader.dataOffset + receiveHeader.length - 4);
+                            dataSize = Math.max(DATA_SIZE, Math.min(maxPayload, accepted));
+                        }
+                        return receiveHeader.window;
+                    }
+                } catch (SocketTimeoutException e) {
+                    rtt.backoff();
+                }
+            }
+            return -1;
+        } finally {
+            receiveSocket.setSoTimeout(0);
+            rtt.resetBackoff();
+        }
+    }
+
+    /**
+     * finds the longest data length up to the negotiated one whose datagrams reach the receiver, which is the
+     * path MTU in effect: a PROBE packet of each candidate length, longest first, is sent until the receiver echoes
+     * one, and a candidate that is lost MAX_PROBE_ATTEMPTS times falls back to the next. Sets dataSize, to
+     * MAX_DATA_LENGTH if every probe is lost
+     * @throws IOException
+     */
+    private void probeDataSize() throws IOException {
+        int headerLength = PacketCodec.headerLength(true, connId);
+        int[] candidates = new int[PROBE_MTUS.length + 1];
+        int count = 0;
+        candidates[count++] = dataSize;
+        for (int mtu : PROBE_MTUS) {
+            int length = mtu - PacketCodec.IP_UDP_OVERHEAD - headerLength;
+            if (length < candidates[count - 1] && length > DATA_SIZE) candidates[count++] = length;
+        }
+
+        dataSize = DATA_SIZE;
+        try {
+            for (int c = 0; c < count; c++) {
+                int length = candidates[c];
+                ByteBuffer buf = ByteBuffer.allocate(headerLength + length);
+                int udpLength = PacketCodec.encodeHeader(buf, PacketCodec.TYPE_PROBE, length, length, true, 0, connId);
+                DatagramPacket probe = new DatagramPacket(buf.array(), udpLength, host, sendPort);
+                for (int attempt = 0; attempt < MAX_PROBE_ATTEMPTS; attempt++) {
+                    sendSocket.send(probe);
+                    receiveSocket.setSoTimeout((int) rtt.getRto());
+                    try {
+                        PacketCodec.Header receiveHeader = waitForPacket();
+                        if (receiveHeader.type == PacketCodec.TYPE_PROBE && receiveHeader.seqNum == length) {
+                            dataSize = length;
+                            sendSocket.setSendBufferSize(SOCKET_BUFFER_SIZE);
+                            return;
+                        }
+                    } catch (SocketTimeoutException e) {
+                        // a late echo of an earlier probe is ignored
+                    }
+                }
+            }
+        } finally {
+            receiveSocket.setSoTimeout(0);
+        }
+    }
+
+    /**
+     * sends packets in the current window frame
+     * @throws IOException
+     */
+    private void sendWindow() throws IOException {
+        // selective repeat keeps a timer per packet, armed in sendSingle
+        if (!selectiveRepeat) {
+            // start timer
+            timer.arm(0, rtt.getRto());
+        }
+
+        sendAllowed();
+    }
+
+    /**
+     * sends the packets of the current window that have not been sent yet, starting the go-back-n timer if nothing
+     * was outstanding, as after a pause of a growing source or of the pacer
+     * @throws IOException
+     */
+    private void sendNew() throws IOException {
+        if (!selectiveRepeat && windowBase > maxSentIdx) timer.arm(0, rtt.getRto());
+        sendAllowed();
+    }
+
+    /**
+     * sends the packets of the current window that have not been sent yet, until the pacer holds one back
+     * @throws IOException
+     */
+    private void sendAllowed() throws IOException {
+        for (int i = 0; i < window(); i++) {
+            if (!sendSingle(windowBase + i)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * timer expiry, called with the session's lock held
+     * @param key expired timer key, the packet's slot in selective repeat and 0 otherwise, or pacingKey
+     * @throws IOException
+     */
+    private void onTimeout(int key) throws IOException {
+        if (key == pacingKey) {
+            // held back packets are due, this must not restart the go-back-n timer
+            if (!closing) sendNew();
+        } else if (closing) {
+            resendEot();
+        } else if (selectiveRepeat) {
+            resendSingle(windowBase + Math.floorMod(key - windowBase, maxWindow));
+        } else {
+            timeoutGbn();
+        }
+    }
+
+    /**
+     * go-back-n only, resets sentHi to the end of last window and resends current window
+     * @throws IOException
+     */
+    private void timeoutGbn() throws IOException {
+        // nothing is outstanding, e.g. a growing source has not added packets yet
+        if (windowBase > maxSentIdx) return;
+
+        if (++timeouts > MAX_TIMEOUTS) {
+            fail(stoppedAcking());
+            return;
+        }
+        rtt.backoff();
+        metrics.onTimeout(seqNumOf(windowBase), rtt.getRto());
+        if (cc != null) {
+            cc.onTimeout();
+            logCwnd();
+        }
+        sentHi = windowBase - 1;
+        sendWindow();
+    }
+
+    /**
+     * sends single packet
+     * @param idx packet index
+     * @return false if the pacer held the packet back, the pacing timer sends it once its slot comes
+     * @throws IOException
+     */
+    private boolean sendSingle(int idx) throws IOException {
+        // if idx is already sent
+        if (idx <= sentHi) {
+            return true;
+        }
+
+        // if idx out of bound
+        DatagramPacket dp = packets.get(idx);
+        if (dp == null) {
+            // the last group may be short, its parity goes out once the source runs out of packets
+            if (parityCount > 0 && idx == maxSentIdx + 1 && packets.isComplete()) sendParity();
+            return true;
+        }
+
+        if (pacing) {
+            // spread the window over the smoothed RTT unless a fixed rate was given
+            double srtt = rtt.getSrtt();
+            if (paceRate == 0 && srtt > 0) pacer.setInterval((long) (srtt * 1e6 / window()));
+
+            long now = System.nanoTime();
+            if (!pacer.tryAcquire(now)) {
+                timer.arm(pacingKey, pacer.millisUntilNext(now));
+                return false;
+            }
+        }
+
+        // send and audit
+        sendDatagram(dp);
+        sentHi = idx;
+        if (seqWriter != null) seqWriter.println(seqNumOf(idx));
+        if (fecGroup > 0 && idx > maxSentIdx) addParity(idx, dp);
+        recordSend(idx, dp);
+
+        if (selectiveRepeat) startPacketTimer(idx);
+        return true;
+    }
+
+    /**
+     * forward error correction only, xors the data of a packet that is sent for the first time into the parity of
+     * its group, and sends the parity once the group is complete
+     * @param idx packet index
+     * @param dp datagram of the packet, with the extended header
+     * @throws IOException
+     */
+    private void addParity(int idx, DatagramPacket dp) throws IOException {
+        if (parityCount == 0) parityStart = idx;
+
+        byte[] parity = parityBuffer.array();
+        byte[] data = dp.getData();
+        int headerLength = PacketCodec.headerLength(true, connId);
+        int from = dp.getOffset() + headerLength;
+        int length = dp.getLength() - headerLength;
+        for (int i = 0; i < length; i++) {
+            parity[headerLength + i] ^= data[from + i];
+        }
+        parityLengths ^= length;
+        parityMaxLength = Math.max(parityMaxLength, length);
+        parityCount++;
+
+        if (parityCount == fecGroup) sendParity();
+    }
+
+    /**
+     * forward error correction only, sends the parity of the current group, with the index of its first packet as
+     * seqnum and "packets << 16 | xor of data lengths" as window, then starts a new group
+     * @throws IOException
+     */
+    private void sendParity() throws IOException {
+        int udpLength = PacketCodec.encodeHeader(parityBuffer, PacketCodec.TYPE_PARITY, parityStart,
+                parityMaxLength, true, parityCount << 16 | parityLengths, connId);
+        if (parityDp == null) parityDp = new DatagramPacket(parityBuffer.array(), 0, host, sendPort);
+        parityDp.setLength(udpLength);
+        sendDatagram(parityDp);
+
+        Arrays.fill(parityBuffer.array(), PacketCodec.headerLength(true, connId), udpLength, (byte) 0);
+        parityCount = 0;
+        parityLengths = 0;
+        parityMaxLength = 0;
+    }
+
+    /**
+     * selective repeat only, (re)starts the retransmission timer of a single packet
+     * @param idx packet index
+     */
+    private void startPacketTimer(int idx) {
+        timer.arm(idx % maxWindow, rtt.getRto());
+    }
+
+    /**
+     * selective repeat only, retransmits a single timed out packet if it is still unacked
+     * @param idx packet index
+     * @throws IOException
+     */
+    private void resendSingle(int idx) throws IOException {
+        if (idx < windowBase || idx > sentHi || acked[idx % maxWindow]) {
+            return;
+        }
+
+        // back off once per expiry of the oldest outstanding packet, like a single retransmission timer would
+        if (idx == windowBase) {
+            if (++timeouts > MAX_TIMEOUTS) {
+                fail(stoppedAcking());
+                return;
+            }
+            rtt.backoff();
+            metrics.onTimeout(seqNumOf(idx), rtt.getRto());
+            if (cc != null) {
+                cc.onTimeout();
+                logCwnd();
+            }
+        }
+
+        retransmitSingle(idx);
+    }
+
+    /**
+     * selective repeat only, resends a single packet and restarts its timer
+     * @param idx packet index
+     * @throws IOException
+     */
+    private void retransmitSingle(int idx) throws IOException {
+        DatagramPacket dp = packets.get(idx);
+        sendDatagram(dp);
+        if (seqWriter != null) seqWriter.println(seqNumOf(idx));
+        recordSend(idx, dp);
+        startPacketTimer(idx);
+    }
+
+    /**
+     * counts a duplicate ack and, once there are dupAckThreshold of them, halves the congestion window and
+     * retransmits windowBase without waiting for its timer. Only the threshold crossing acts, so one loss is
+     * retransmitted once
+     * @throws IOException
+     */
+    private void onDupAck() throws IOException {
+        dupAcks++;
+        metrics.onDupAck(seqNumOf(windowBase), dupAcks);
+        if (dupAcks != dupAckThreshold) return;
+
+        if (cc != null) {
+            cc.onDupAcks();
+            logCwnd();
+        }
+
+        if (selectiveRepeat) {
+            retransmitSingle(windowBase);
+        } else {
+            // the receiver discarded everything after the missing packet, so go back to it and restart the timer
+            sentHi = windowBase - 1;
+            sendWindow();
+        }
+    }
+
+    /**
+     * selective repeat only, marks a single packet as acked and slides the window past acked packets
+     * @param ack ack header
+     * @throws IOException
+     */
+    private void receiveAckSr(PacketCodec.Header ack) throws IOException {
+        updateRcvWindow(ack);
+
+        // a late ack for a packet that has already slid out of the window maps past sentHi, or before windowBase
+        // with the extended header
+        int idx = ackIndex(ack.seqNum, windowBase);
+        int slot = idx % maxWindow;
+        if (idx < windowBase || idx > sentHi || acked[slot]) {
+            return;
+        }
+
+        acked[slot] = true;
+        metrics.onPayload(dataLengths[slot]);
+        sampleRtt(idx);
+        timer.cancel(slot);
+        if (cc != null) {
+            cc.onAck(1);
+            logCwnd();
+        }
+
+        if (idx > windowBase) {
+            // a later packet got through while windowBase is still missing
+            onDupAck();
+        } else {
+            dupAcks = 0;
+        }
+
+        while (windowBase <= sentHi && acked[windowBase % maxWindow]) {
+            acked[windowBase % maxWindow] = false;
+            windowBase++;
+            timeouts = 0;
+        }
+        notifyAll();
+        sendWindow();
+    }
+
+    /**
+     * go-back-n only, slides the window past a cumulative ack
+     * @param ack ack header
+     * @throws IOException
+     */
+    private void receiveAckGbn(PacketCodec.Header ack) throws IOException {
+        updateRcvWindow(ack);
+
+        // an ack for windowBase - 1 is a duplicate, anything else outside the window is a late ack from a
+        // previous page. sentHi is rewound on a timeout, so packets up to maxSentIdx may still be acked
+        int idx = ackIndex(ack.seqNum, windowBase - 1);
+        if (idx < windowBase - 1 || idx > maxSentIdx) {
+            return;
+        }
+
+        if (idx < windowBase) {
+            // duplicate ack, the receiver is missing windowBase
+            onDupAck();
+            return;
+        }
+
+        int newlyAcked = idx + 1 - windowBase;
+        long ackedBytes = 0;
+        for (int i = windowBase; i <= idx; i++) ackedBytes += dataLengths[i % maxWindow];
+        metrics.onPayload(ackedBytes);
+        windowBase = idx + 1;
+        sentHi = Math.max(sentHi, idx);
+        dupAcks = 0;
+        timeouts = 0;
+        sampleRtt(idx);
+        if (cc != null) {
+            cc.onAck(newlyAcked);
+            logCwnd();
+        }
+        notifyAll();
+        sendWindow();
+    }
+
+    /**
+     * maps an acked sequence number onto a packet index
+     * @param seqNum acked sequence number
+     * @param base lowest packet index the ack can refer to, only needed for the 32-modulo header
+     * @return packet index
+     */
+    private int ackIndex(int seqNum, int base) {
+        return extended ? seqNum : base + Math.floorMod(seqNum - base, SeqNumModulo);
+    }
+
+    /**
+     * @param idx packet index
+     * @return sequence number of the packet in the negotiated header format
+     */
+    private int seqNumOf(int idx) {
+        return extended ? idx : idx % SeqNumModulo;
+    }
+
+    private void updateRcvWindow(PacketCodec.Header ack) {
+        if (ack.extended) rcvWindow = Math.max(1, Math.min(maxWindow, ack.window));
+    }
+
+    /**
+     * records the send time and data length of a packet, or marks it as retransmitted if it has been sent before
+     * @param idx packet index
+     * @param dp datagram of the packet
+     */
+    private void recordSend(int idx, DatagramPacket dp) {
+        int slot = idx % maxWindow;
+        if (idx > maxSentIdx) {
+            maxSentIdx = idx;
+            sendTimes[slot] = System.nanoTime();
+            retransmitted[slot] = false;
+            dataLengths[slot] = dp.getLength() - PacketCodec.headerLength(extended, connId);
+            metrics.onSend(seqNumOf(idx), idx + 1 - windowBase);
+        } else {
+            retransmitted[slot] = true;
+            metrics.onRetransmit(seqNumOf(idx));
+        }
+    }
+
+    /**
+     * feeds the round trip time of a newly acked packet to the estimator unless it has been retransmitted
+     * @param idx packet index
+     */
+    private void sampleRtt(int idx) {
+        int slot = idx % maxWindow;
+        if (retransmitted[slot]) {
+            rtt.resetBackoff();
+            return;
+        }
+
+        long nanos = System.nanoTime() - sendTimes[slot];
+        rtt.addSample(nanos / 1e6);
+        metrics.onRtt(seqNumOf(idx), nanos);
+        if (rttWriter != null) rttWriter.printf("%.3f %.3f %d\n", rtt.getSrtt(), rtt.getRttVar(), rtt.getRto());
+    }
+
+    /**
+     * @return number of packets that may be outstanding from windowBase
+     */
+    private int window() {
+        return Math.min(cc != null ? cc.getWindow() : maxWindow, rcvWindow);
+    }
+
+    /**
+     * traces the congestion window, and logs it as "<ms since start> <cwnd> <ssthresh>"
+     */
+    private void logCwnd() {
+        if (cc == null) return;
+        metrics.onCwnd(cc.getCwnd());
+        if (cwndWriter == null) return;
+        cwndWriter.printf("%d %.2f %.2f\n",
+                (System.nanoTime() - startTime) / 1000000,
+                cc.getCwnd(),
+                cc.getSsthresh());
+    }
+
+    /**
+     * @return true if some packet has not been acked yet
+     * @throws IOException
+     */
+    private boolean hasUnacked() throws IOException {
+        return packets.get(windowBase) != null;
+    }
+
+    /**
+     * handles a packet received from the receiver, with the session's lock held
+     * @param receiveHeader decoded header
+     * @throws Exception
+     */
+    private void handlePacket(PacketCodec.Header receiveHeader) throws Exception {
+        if (receiveHeader.type == PacketCodec.TYPE_ACK) { // if received an ACK packet
+            // get seqNum and audit
+            int seqNum = receiveHeader.seqNum;
+            if (ackWriter != null) ackWriter.println(seqNum);
+            metrics.onAck(seqNum, receiveHeader.window);
+
+            if (selectiveRepeat) {
+                receiveAckSr(receiveHeader);
+            } else {
+                receiveAckGbn(receiveHeader);
+            }
+        } else if (receiveHeader.type == PacketCodec.TYPE_EOT) {
+            // only expected once the EOT has been sent
+            if (!closing) return;
+            checkEot(receiveHeader);
+            eotAcked = true;
+            timer.cancelAll();
+            notifyAll();
+        } else if (receiveHeader.type == PacketCodec.TYPE_SYN) {
+            // late answer to a retransmitted SYN, ignore
+        } else {
+            throw new Exception("Received invalid packet");
+        }
+    }
+
+    /**
+     * sends a datagram to the receiver. On the nio engine a full socket buffer drops the datagram, the same as a
+     * loss on the link, and the retransmission timer recovers it
+     * @param dp datagram
+     * @throws IOException
+     */
+    private void sendDatagram(DatagramPacket dp) throws IOException {
+        pacer.recordSend(System.nanoTime());
+        metrics.onDatagramSent();
+        if (selector == null) {
+            sendSocket.send(dp);
+        } else {
+            sendChannel.send(ByteBuffer.wrap(dp.getData(), dp.getOffset(), dp.getLength()), receiverAddress);
+        }
+    }
+
+    /**
+     * gives up on the receiver: stops the timers, wakes the owner and, on the blocking engine, closes the receive
+     * socket so that the receive in run fails and run throws e
+     * @param e failure to report
+     */
+    private void fail(Exception e) {
+        if (failure == null) failure = e;
+        timer.cancelAll();
+        notifyAll();
+        if (!nio) receiveSocket.close();
+    }
+
+    private void startClosing(DatagramPacket eot) throws IOException {
+        timer.cancelAll();
+        closing = true;
+        eotDp = eot;
+        resendEot();
+    }
+
+    /**
+     * @return failure of a transfer whose receiver has not acked for MAX_TIMEOUTS timeouts in a row. The data length
+     * is probed only once, before the first packet, so long packets that the path stops carrying part way end the
+     * same way
+     */
+    private Exception stoppedAcking() {
+        if (dataSize <= DATA_SIZE) return new Exception("Receiver stopped acking");
+        return new Exception("Receiver stopped acking packets of " + dataSize + " bytes, the path may have stopped "
+                + "carrying them, retry with a smaller --payload");
+    }
+
+    /**
+     * sends the EOT and arms its timer, or gives up after MAX_EOT_ATTEMPTS, as the receiver may not have all of the
+     * data and, in a resumable transfer, has not confirmed its CRC-32
+     * @throws IOException
+     */
+    private void resendEot() throws IOException {
+        if (eotAttempts == MAX_EOT_ATTEMPTS) {
+            fail(new Exception("EOT not acknowledged after " + MAX_EOT_ATTEMPTS + " attempts"));
+            return;
+        }
+
+        eotAttempts++;
+        sendDatagram(eotDp);
+        timer.arm(0, rtt.getRto());
+    }
+
+    /**
+     * @return EOT packet, with the CRC-32 of the whole file as data in a resumable transfer
+     * @throws IOException if the file could not be read
+     */
+    private DatagramPacket encodeEot() throws IOException {
+        ByteBuffer crc = null;
+        if (fileCrc != null) {
+            crc = ByteBuffer.allocate(8);
+            crc.putLong(0, fileCrc());
+        }
+        return encodeControl(PacketCodec.TYPE_EOT, windowBase, 0, crc);
+    }
+
+    /**
+     * resumable transfers only, compares the CRC-32 of the receiver's output in its EOT with the file's
+     * @param eot header of the receiver's EOT, its data is still in the receive buffer
+     * @throws Exception if they differ
+     */
+    private void checkEot(PacketCodec.Header eot) throws Exception {
+        if (fileCrc == null || eot.length < 8) return;
+
+        long actual = receiveBuffer.getLong(eot.dataOffset);
+        long expected = fileCrc();
+        if (actual != expected) {
+            throw new Exception("Checksum mismatch, receiver has " + Long.toHexString(actual) + " instead of "
+                    + Long.toHexString(expected));
+        }
+    }
+
+    private long fileCrc() throws IOException {
+        try {
+            return fileCrc.get();
+        } catch (InterruptedException | ExecutionException e) {
+            throw new IOException("Could not checksum the file", e);
+        }
+    }
+
+    /**
+     * receives a datagram into the reused receive buffer
+     * @return decoded header, valid until the next call
+     * @throws IOException if the datagram is invalid
+     */
+    private PacketCodec.Header waitForPacket() throws IOException {
+        receiveDp.setLength(receiveBuffer.capacity());
+        receiveSocket.receive(receiveDp);
+        if (!PacketCodec.decode(receiveBuffer, receiveDp.getLength(), receiveHeader)) {
+            throw new IOException("Received invalid packet");
+        }
+        return receiveHeader;
+    }
+
+    /**
+     * encodes a packet without data in the negotiated header format, SYN always uses the extended header
+     * @param type packet type
+     * @param seqNum packet index
+     * @param window window to advertise
+     * @return datagram addressed to the receiver
+     */
+    private DatagramPacket encodeControl(int type, int seqNum, int window) {
+        return encodeControl(type, seqNum, window, null);
+    }
+
+    /**
+     * @param data data bytes, or null for none
+     */
+    private DatagramPacket encodeControl(int type, int seqNum, int window, ByteBuffer data) {
+        boolean ext = extended || type == PacketCodec.TYPE_SYN;
+        ByteBuffer buf = ByteBuffer.allocate(PacketCodec.CONN_HEADER_LENGTH + (data != null ? data.remaining() : 0));
+        int udpLength = PacketCodec.encode(buf, type, seqNum, ext, window, ext ? connId : 0, data);
+        return new DatagramPacket(buf.array(), udpLength, host, sendPort);
+    }
+}
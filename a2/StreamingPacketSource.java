@@ -0,0 +1,133 @@
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.Deflater;
+
+/**
+ * reads and encodes the file lazily, keeping only the last {@code capacity} packets in a ring so that heap use is
+ * bounded by the window size rather than the file size. Ring buffers and datagrams are reused, and file bytes are read
+ * straight into the datagram buffer behind the header, or deflated into it if the source is compressed
+ */
+public class StreamingPacketSource implements PacketSource {
+
+    private static final int INPUT_SIZE = 64 * 1024;
+
+    private final FileChannel channel;
+    private final int dataSize;
+    private final boolean extended;
+    private final int connId;
+    private long remaining; // bytes of the range not read yet
+
+    // compressed sources only, packets carry the deflated range instead of the file bytes
+    private final Deflater deflater;
+    private final ByteBuffer input;
+
+    // indexed by packet index % capacity
+    private final ByteBuffer[] ring;
+    private final DatagramPacket[] datagrams;
+
+    private int nextIdx; // index of the next packet to be read from the file
+    private boolean eof;
+
+    /**
+     * @param offset start of the byte range to send
+     * @param length length of the range, clamped to the end of the file
+     * @param connId connection id carried by every packet, 0 for none
+     * @param deflater compresses the range into the packets, ended on close, or null to send it as is
+     */
+    public StreamingPacketSource(String fileName, long offset, long length, int capacity, int dataSize,
+                                 boolean extended, int connId, Deflater deflater, InetAddress hostIa, int port)
+            throws IOException {
+        this.channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ);
+        this.channel.position(offset);
+        this.remaining = Math.max(0, Math.min(length, channel.size() - offset));
+        this.dataSize = dataSize;
+        this.extended = extended;
+        this.connId = connId;
+        this.deflater = deflater;
+        this.input = deflater != null ? ByteBuffer.allocate(INPUT_SIZE) : null;
+        this.ring = new ByteBuffer[capacity];
+        this.datagrams = new DatagramPacket[capacity];
+
+        int udpLength = PacketCodec.headerLength(extended, connId) + dataSize;
+        for (int i = 0; i < capacity; i++) {
+            ring[i] = ByteBuffer.allocate(udpLength);
+            datagrams[i] = new DatagramPacket(ring[i].array(), udpLength, hostIa, port);
+        }
+    }
+
+    @Override
+    public synchronized DatagramPacket get(int idx) throws IOException {
+        if (idx < nextIdx - ring.length) {
+            throw new IllegalStateException("Packet " + idx + " has already been released");
+        }
+
+        // read ahead up to idx
+        while (idx >= nextIdx && !eof) {
+            readNext();
+        }
+
+        return idx < nextIdx ? datagrams[idx % ring.length] : null;
+    }
+
+    private void readNext() throws IOException {
+        int slot = nextIdx % ring.length;
+        ByteBuffer buf = ring[slot];
+
+        // fill a whole chunk unless the file ends first
+        int headerLength = PacketCodec.headerLength(extended, connId);
+        int length;
+        int type = PacketCodec.TYPE_DATA;
+        if (deflater != null) {
+            buf.clear().position(headerLength).limit(headerLength + dataSize);
+            length = deflateChunk(buf);
+            type |= PacketCodec.COMPRESSED_FLAG;
+        } else {
+            buf.clear().position(headerLength).limit(headerLength + (int) Math.min(dataSize, remaining));
+            length = PacketSource.readChunk(channel, buf);
+            remaining -= length;
+        }
+        if (length < dataSize) eof = true;
+        if (length == 0) return;
+
+        int udpLength = PacketCodec.encodeHeader(buf, type, nextIdx, length, extended, 0, connId);
+        datagrams[slot].setLength(udpLength);
+        nextIdx++;
+    }
+
+    /**
+     * fills buf with deflater output, feeding the deflater the rest of the range as it needs input
+     * @param buf destination, filled from its position to its limit
+     * @return number of bytes written, less than requested only at the end of the compressed stream
+     * @throws IOException
+     */
+    private int deflateChunk(ByteBuffer buf) throws IOException {
+        int start = buf.position();
+        while (buf.hasRemaining() && !deflater.finished()) {
+            if (deflater.needsInput()) {
+                input.clear().limit((int) Math.min(input.capacity(), remaining));
+                int n = PacketSource.readChunk(channel, input);
+                remaining -= n;
+                if (n == 0) {
+                    deflater.finish();
+                } else {
+                    deflater.setInput(input.array(), 0, n);
+                }
+            }
+
+            int n = deflater.deflate(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+            buf.position(buf.position() + n);
+        }
+        return buf.position() - start;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (deflater != null) deflater.end();
+        channel.close();
+    }
+}
@@ -0,0 +1,120 @@
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * striped transfers, where a file is split into byte ranges of whole packets and every range is sent by its own
+ * Sender and Receiver process on its own pair of ports, with its own window. Stripe i uses both ports of the
+ * command line plus i, and the receivers write their ranges into the same output file at the range's offset. Through an
+ * emulator, run it with --ports=N so that it relays all of the stripes' ports
+ */
+public final class Stripes {
+
+    private Stripes() {
+
+    }
+
+    /**
+     * runs one child process per stripe with the same arguments and waits for all of them. The children are
+     * destroyed when the parent ends, also when it is interrupted or terminated, but not when it is killed outright
+     * @param mainClass Sender or Receiver
+     * @param args command line of the parent, the 4 positional arguments followed by its options
+     * @param stripes number of stripes
+     * @throws Exception if a stripe could not be started or failed
+     */
+    public static void run(String mainClass, String[] args, int stripes) throws Exception {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        int sendPort = Integer.parseInt(args[1]);
+        int receivePort = Integer.parseInt(args[2]);
+
+        List<Process> processes = new ArrayList<>();
+        Thread destroyChildren = new Thread(() -> destroy(processes), "stripes-shutdown");
+        Runtime.getRuntime().addShutdownHook(destroyChildren);
+        try {
+            for (int i = 0; i < stripes; i++) {
+                List<String> command = new ArrayList<>();
+                command.add(java);
+                command.add("-cp");
+                command.add(System.getProperty("java.class.path"));
+                command.add(mainClass);
+                command.add(args[0]);
+                command.add(Integer.toString(sendPort + i));
+                command.add(Integer.toString(receivePort + i));
+                command.add(args[3]);
+                for (int j = 4; j < args.length; j++) {
+                    if (!args[j].startsWith("--stripes")) command.add(args[j]);
+                }
+                command.add("--stripe=" + i + "/" + stripes);
+
+                Process process = new ProcessBuilder(command).inheritIO().start();
+                synchronized (processes) {
+                    processes.add(process);
+                }
+            }
+
+            for (int i = 0; i < stripes; i++) {
+                if (processes.get(i).waitFor() != 0) {
+                    throw new Exception("Stripe " + i + " failed");
+                }
+            }
+        } finally {
+            destroy(processes);
+            try {
+                Runtime.getRuntime().removeShutdownHook(destroyChildren);
+            } catch (IllegalStateException e) {
+                // already shutting down, the hook destroys them again
+            }
+        }
+    }
+
+    private static void destroy(List<Process> processes) {
+        synchronized (processes) {
+            for (Process process : processes) {
+                process.destroy();
+            }
+        }
+    }
+
+    /**
+     * parses the value of --stripe
+     * @param value "i/N"
+     * @return {i, N}
+     * @throws Exception
+     */
+    public static int[] parse(String value) throws Exception {
+        int slash = value.indexOf('/');
+        try {
+            int stripe = Integer.parseInt(value.substring(0, slash));
+            int stripes = Integer.parseInt(value.substring(slash + 1));
+            if (stripe >= 0 && stripe < stripes) return new int[]{stripe, stripes};
+        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+            // reported below
+        }
+        throw new Exception("Invalid input for --stripe");
+    }
+
+    /**
+     * @param fileSize size of the whole file
+     * @param dataSize packet data size, ranges are made of whole packets
+     * @param stripe stripe index, may be stripes to get the end of the last range
+     * @param stripes number of stripes
+     * @return byte offset of the stripe's range in the file
+     */
+    public static long rangeStart(long fileSize, int dataSize, int stripe, int stripes) {
+        long packetCount = (fileSize + dataSize - 1) / dataSize;
+        long packetsPerStripe = (packetCount + stripes - 1) / stripes;
+        return Math.min(fileSize, stripe * packetsPerStripe * dataSize);
+    }
+
+    /**
+     * @param name log file name
+     * @param stripe stripe index, or -1 when not striped
+     * @return name of the log file for the stripe, e.g. seqnum.2.log
+     */
+    public static String logName(String name, int stripe) {
+        if (stripe < 0) return name;
+
+        int dot = name.lastIndexOf('.');
+        return dot < 0 ? name + "." + stripe : name.substring(0, dot) + "." + stripe + name.substring(dot);
+    }
+}
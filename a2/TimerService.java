@@ -0,0 +1,33 @@
+import java.io.IOException;
+
+/**
+ * retransmission deadlines identified by a small integer key, e.g. a window slot
+ */
+public interface TimerService {
+
+    interface Handler {
+        /**
+         * called once per expired deadline, with the owner's lock held
+         * @param key key of the expired deadline
+         * @throws IOException
+         */
+        void onTimeout(int key) throws IOException;
+    }
+
+    /**
+     * (re)arms the deadline of a key, replacing any pending one
+     * @param key deadline key
+     * @param delayMs delay from now in milliseconds
+     */
+    void arm(int key, long delayMs);
+
+    /**
+     * cancels the pending deadline of a key, if any
+     * @param key deadline key
+     */
+    void cancel(int key);
+
+    void cancelAll();
+
+    void shutdown();
+}
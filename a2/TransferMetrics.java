@@ -0,0 +1,286 @@
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * counters and histograms of a transfer, or of all transfers of a {@link ReceiverServer}, published over JMX as
+ * ComputerNetworks:type=Sender|Receiver|ReceiverServer[,name=<stripe or connection id>]. Everything is recorded
+ * with atomic adds and no lock, so the protocol threads never wait for a reader. The sending side fills the send,
+ * ack, RTT and window figures and the receiving side the receive and ack sent figures. Protocol events also go to an
+ * optional {@link EventTrace}
+ */
+public class TransferMetrics implements TransferMetricsMBean {
+
+    private static final String DOMAIN = "ComputerNetworks";
+
+    private final LongAdder datagramsSent = new LongAdder();
+    private final LongAdder retransmits = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder acksReceived = new LongAdder();
+    private final LongAdder duplicateAcks = new LongAdder();
+    private final LongAdder datagramsReceived = new LongAdder();
+    private final LongAdder discarded = new LongAdder();
+    private final LongAdder acksSent = new LongAdder();
+    private final LongAdder payloadBytes = new LongAdder();
+    private final Histogram rtt = new Histogram(); // us
+    private final Histogram window = new Histogram(); // packets outstanding after every new send
+
+    // System.nanoTime() of the start of the transfer and of the latest payload, 0 until set
+    private final AtomicLong startTime = new AtomicLong();
+    private volatile long payloadTime;
+
+    private final EventTrace trace; // null if off
+    private ObjectName objectName;
+
+    public TransferMetrics() {
+        this(0);
+    }
+
+    /**
+     * @param traceCapacity number of events kept by the event trace, 0 for no trace
+     */
+    public TransferMetrics(int traceCapacity) {
+        trace = traceCapacity > 0 ? new EventTrace(traceCapacity) : null;
+    }
+
+    /**
+     * publishes the metrics with the platform MBean server
+     * @param type Sender, Receiver or ReceiverServer
+     * @param name stripe or connection id, or null for none
+     * @throws JMException if the name is taken
+     */
+    public void register(String type, String name) throws JMException {
+        objectName = new ObjectName(DOMAIN + ":type=" + type + (name != null ? ",name=" + name : ""));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+    }
+
+    public void unregister() throws JMException {
+        if (objectName != null) ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        objectName = null;
+    }
+
+    /**
+     * starts the goodput clock, only the first call counts
+     */
+    public void start() {
+        startTime.compareAndSet(0, System.nanoTime());
+    }
+
+    public void onDatagramSent() {
+        datagramsSent.increment();
+    }
+
+    /**
+     * @param seqNum sequence number of a data packet sent for the first time
+     * @param outstanding packets sent and not acked, including this one
+     */
+    public void onSend(int seqNum, int outstanding) {
+        window.record(outstanding);
+        trace(EventTrace.SEND, seqNum, outstanding);
+    }
+
+    public void onRetransmit(int seqNum) {
+        retransmits.increment();
+        trace(EventTrace.RETRANSMIT, seqNum, 0);
+    }
+
+    /**
+     * @param seqNum sequence number of the oldest unacked packet
+     * @param rto retransmission timeout in ms after backing off
+     */
+    public void onTimeout(int seqNum, long rto) {
+        timeouts.increment();
+        trace(EventTrace.TIMEOUT, seqNum, rto);
+    }
+
+    /**
+     * @param seqNum acked sequence number
+     * @param advertised window advertised with the ack
+     */
+    public void onAck(int seqNum, int advertised) {
+        acksReceived.increment();
+        trace(EventTrace.ACK, seqNum, advertised);
+    }
+
+    /**
+     * @param seqNum sequence number of the oldest unacked packet, which the receiver is missing
+     * @param count duplicate acks in a row
+     */
+    public void onDupAck(int seqNum, int count) {
+        duplicateAcks.increment();
+        trace(EventTrace.DUP_ACK, seqNum, count);
+    }
+
+    /**
+     * @param seqNum sequence number of the sampled packet
+     * @param nanos round trip time
+     */
+    public void onRtt(int seqNum, long nanos) {
+        rtt.record(nanos / 1000);
+        trace(EventTrace.RTT, seqNum, nanos / 1000);
+    }
+
+    public void onCwnd(double cwnd) {
+        trace(EventTrace.CWND, 0, (long) cwnd);
+    }
+
+    public void onReceive(int seqNum, int connId) {
+        datagramsReceived.increment();
+        trace(EventTrace.RECEIVE, seqNum, connId);
+    }
+
+    /**
+     * counts a received packet that was a duplicate, outside the window, or out of order in go-back-n
+     */
+    public void onDiscard() {
+        discarded.increment();
+    }
+
+    public void onAckSent(int seqNum, int connId) {
+        acksSent.increment();
+        trace(EventTrace.ACK_SENT, seqNum, connId);
+    }
+
+    public void onEot(int seqNum, int connId) {
+        trace(EventTrace.EOT, seqNum, connId);
+    }
+
+    /**
+     * @param bytes data bytes acked by the receiver, or written by it
+     */
+    public void onPayload(long bytes) {
+        payloadBytes.add(bytes);
+        payloadTime = System.nanoTime();
+    }
+
+    private void trace(int event, int seqNum, long value) {
+        if (trace != null) trace.record(event, seqNum, value);
+    }
+
+    @Override
+    public long getDatagramsSent() {
+        return datagramsSent.sum();
+    }
+
+    @Override
+    public long getRetransmits() {
+        return retransmits.sum();
+    }
+
+    @Override
+    public long getTimeouts() {
+        return timeouts.sum();
+    }
+
+    @Override
+    public long getAcksReceived() {
+        return acksReceived.sum();
+    }
+
+    @Override
+    public long getDuplicateAcks() {
+        return duplicateAcks.sum();
+    }
+
+    @Override
+    public long getDatagramsReceived() {
+        return datagramsReceived.sum();
+    }
+
+    @Override
+    public long getDiscarded() {
+        return discarded.sum();
+    }
+
+    @Override
+    public long getAcksSent() {
+        return acksSent.sum();
+    }
+
+    @Override
+    public long getPayloadBytes() {
+        return payloadBytes.sum();
+    }
+
+    /**
+     * @return payload bytes over the time from the start to the latest payload, in Mbit/s
+     */
+    @Override
+    public double getGoodputMbps() {
+        long start = startTime.get();
+        long elapsed = payloadTime - start;
+        if (start == 0 || elapsed <= 0) return 0;
+        return payloadBytes.sum() * 8 * 1000.0 / elapsed;
+    }
+
+    @Override
+    public double getRttMeanMillis() {
+        return rtt.getMean() / 1000;
+    }
+
+    @Override
+    public double getRttP50Millis() {
+        return rtt.getPercentile(50) / 1000.0;
+    }
+
+    @Override
+    public double getRttP99Millis() {
+        return rtt.getPercentile(99) / 1000.0;
+    }
+
+    @Override
+    public double getRttMaxMillis() {
+        return rtt.getMax() / 1000.0;
+    }
+
+    @Override
+    public double getWindowMean() {
+        return window.getMean();
+    }
+
+    @Override
+    public long getWindowP99() {
+        return window.getPercentile(99);
+    }
+
+    @Override
+    public long getWindowMax() {
+        return window.getMax();
+    }
+
+    @Override
+    public long getTraceEvents() {
+        return trace != null ? trace.getRecorded() : 0;
+    }
+
+    @Override
+    public void dumpTrace(String fileName) throws IOException {
+        if (trace != null) trace.dump(fileName);
+    }
+
+    /**
+     * @return "<datagrams sent> <retransmits> <timeouts> <acks received> <duplicate acks> <datagrams received>
+     * <discarded> <acks sent> <payload bytes> <goodput Mbit/s> <mean rtt ms> <p99 rtt ms> <mean window>
+     * <max window>"
+     */
+    public String summary() {
+        return String.format("%d %d %d %d %d %d %d %d %d %.3f %.3f %.3f %.2f %d",
+                getDatagramsSent(),
+                getRetransmits(),
+                getTimeouts(),
+                getAcksReceived(),
+                getDuplicateAcks(),
+                getDatagramsReceived(),
+                getDiscarded(),
+                getAcksSent(),
+                getPayloadBytes(),
+                getGoodputMbps(),
+                getRttMeanMillis(),
+                getRttP99Millis(),
+                getWindowMean(),
+                getWindowMax());
+    }
+}
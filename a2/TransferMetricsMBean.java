@@ -0,0 +1,49 @@
+import java.io.IOException;
+
+/**
+ * management interface of {@link TransferMetrics}, read with jconsole or any other JMX client while a transfer runs
+ */
+public interface TransferMetricsMBean {
+
+    long getDatagramsSent();
+
+    long getRetransmits();
+
+    long getTimeouts();
+
+    long getAcksReceived();
+
+    long getDuplicateAcks();
+
+    long getDatagramsReceived();
+
+    long getDiscarded();
+
+    long getAcksSent();
+
+    long getPayloadBytes();
+
+    double getGoodputMbps();
+
+    double getRttMeanMillis();
+
+    double getRttP50Millis();
+
+    double getRttP99Millis();
+
+    double getRttMaxMillis();
+
+    double getWindowMean();
+
+    long getWindowP99();
+
+    long getWindowMax();
+
+    long getTraceEvents();
+
+    /**
+     * writes the event trace, if there is one
+     * @param fileName trace file
+     */
+    void dumpTrace(String fileName) throws IOException;
+}
@@ -0,0 +1,112 @@
+import java.util.Arrays;
+
+/**
+ * map from int keys to int values in primitive arrays, so that lookups neither box nor allocate. Entries are kept in
+ * insertion order in two dense arrays, which keyAt and valueAt index, and found through an open addressing table of
+ * entry indices with linear probing. Entries cannot be removed one by one, only cleared all at once
+ */
+final class IntIntMap {
+
+    private static final int INITIAL_CAPACITY = 16; // power of two
+
+    private int[] table; // entry index + 1, 0 for an empty slot
+    private int[] keys;
+    private int[] values;
+    private int size;
+
+    IntIntMap() {
+        table = new int[INITIAL_CAPACITY];
+        keys = new int[INITIAL_CAPACITY / 2];
+        values = new int[INITIAL_CAPACITY / 2];
+    }
+
+    /**
+     * @param key key
+     * @param missing value to return if the key is absent
+     * @return value of the key, or missing
+     */
+    int get(int key, int missing) {
+        int i = indexOf(key);
+        return i < 0 ? missing : values[i];
+    }
+
+    /**
+     * @param key key
+     * @return index of the key's entry, for keyAt and valueAt, or -1 if the key is absent
+     */
+    int indexOf(int key) {
+        int mask = table.length - 1;
+        for (int slot = hash(key) & mask; ; slot = (slot + 1) & mask) {
+            int e = table[slot];
+            if (e == 0) return -1;
+            if (keys[e - 1] == key) return e - 1;
+        }
+    }
+
+    /**
+     * @param key key
+     * @param value value, replacing the key's value if it is present
+     */
+    void put(int key, int value) {
+        int mask = table.length - 1;
+        int slot = hash(key) & mask;
+        for (int e = table[slot]; e != 0; e = table[slot]) {
+            if (keys[e - 1] == key) {
+                values[e - 1] = value;
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, size * 2);
+            values = Arrays.copyOf(values, size * 2);
+        }
+        keys[size] = key;
+        values[size] = value;
+        table[slot] = ++size;
+
+        // keep the table at most half full, so that probe sequences stay short
+        if (size * 2 > table.length) rehash(table.length * 2);
+    }
+
+    /**
+     * @param i entry index, from 0 to size - 1 in insertion order
+     */
+    int keyAt(int i) {
+        return keys[i];
+    }
+
+    int valueAt(int i) {
+        return values[i];
+    }
+
+    int size() {
+        return size;
+    }
+
+    void clear() {
+        Arrays.fill(table, 0);
+        size = 0;
+    }
+
+    private void rehash(int capacity) {
+        table = new int[capacity];
+        int mask = capacity - 1;
+        for (int e = 0; e < size; e++) {
+            int slot = hash(keys[e]) & mask;
+            while (table[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = e + 1;
+        }
+    }
+
+    /**
+     * spreads consecutive ids over the table, which linear probing would otherwise cluster
+     */
+    private static int hash(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
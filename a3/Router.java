@@ -5,14 +5,15 @@ import java.net.InetAddress;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
-import java.util.Map;
 
 public class Router {
 
-    private static final int NBR_ROUTER = 5;
     private static final int PACKET_SIZE = 512;
+    // a circuit_DB takes 4 + 8 bytes per link, so a router with many links needs up to the largest UDP payload
+    private static final int CIRCUIT_DB_SIZE = 65507;
 
     private static int routerId;
     private static String nseHost;
@@ -24,8 +25,13 @@ public class Router {
 
     private static circuit_DB circuitDb;
     private static List<PKT_LSPDU> topologyDB;
-    private static Map<Integer, Integer> neighbours; // link_id, router_id
-    private static Map<Integer, Route> rib; // destRouter_id, Route
+    private static IntIntMap firstLinkEnds; // link_id, router_id of the first LS PDU of the link in topologyDB
+    private static IntIntMap secondLinkEnds; // link_id, router_id of the second
+    private static IntIntMap neighbours; // link_id, router_id
+    private static IntIntMap ribIndex; // destRouter_id, index of its route in ribNextIds and ribCosts
+    private static int[] ribNextIds; // id of src's first neighbouring router in the route
+    private static int[] ribCosts; // total cost of the route
+    private static final ShortestPathFirst spf = new ShortestPathFirst();
 
     private static PrintWriter logger;
 
@@ -33,25 +39,6 @@ public class Router {
 
     }
 
-    static class Route {
-        int next_id; // id of src's first neighbouring router in this route
-        int totalCost;
-
-        public Route() {
-            next_id = 0;
-            totalCost = Integer.MAX_VALUE;
-        }
-
-        public boolean setMinTotalCost(int myTotalCost, int myNextId) {
-            if (myTotalCost < totalCost) {
-                totalCost = myTotalCost;
-                next_id = myNextId;
-                return true;
-            }
-            return false;
-        }
-    }
-
     static interface Sendable {
         public byte[] getUDPdata();
 
@@ -133,13 +120,21 @@ public class Router {
         int nbr_link;
         link_cost linkcost[];
 
-        public circuit_DB(byte[] UDPdata) {
-            ByteBuffer buffer = ByteBuffer.wrap(UDPdata);
+        /**
+         * @param UDPdata received datagram
+         * @param length number of bytes received
+         */
+        public circuit_DB(byte[] UDPdata, int length) {
+            ByteBuffer buffer = ByteBuffer.wrap(UDPdata, 0, length);
             buffer.order(ByteOrder.LITTLE_ENDIAN);
+            if (length < 4) throw new IllegalArgumentException("Invalid circuit_DB: " + length + " bytes");
 
             nbr_link = buffer.getInt();
+            if (nbr_link < 0 || nbr_link > buffer.remaining() / 8) {
+                throw new IllegalArgumentException("Invalid circuit_DB: nbr_link " + nbr_link);
+            }
 
-            linkcost = new link_cost[NBR_ROUTER];
+            linkcost = new link_cost[nbr_link];
             for (int i = 0; i < nbr_link; i++) {
                 int myLink = buffer.getInt();
                 int myCost = buffer.getInt();
@@ -249,7 +244,7 @@ public class Router {
         waitPackets();
     }
 
-    private static void validateInput(String[] args) throws Exception {
+    static void validateInput(String[] args) throws Exception {
         if (args.length != 4) {
             throw new Exception("Invalid number of input arguments");
         }
@@ -275,17 +270,10 @@ public class Router {
         }
     }
 
-    private static void init() throws Exception {
+    static void init() throws Exception {
         nseIa = InetAddress.getByName(nseHost);
         socket = new DatagramSocket(routerPort);
 
-        neighbours = new HashMap<>();
-
-        rib = new HashMap<>();
-        for (int i = 1; i <= NBR_ROUTER; i++) {
-            rib.put(i, new Route());
-        }
-
         logger = new PrintWriter("router" + routerId + ".log");
     }
 
@@ -295,15 +283,34 @@ public class Router {
 
     private static void waitCircuitDB() throws Exception {
         // receive circuit db and audit
-        DatagramPacket dp = receiveDatagramPacket();
-        circuitDb = new circuit_DB(dp.getData());
-        circuitDb.logReceive(routerId);
+        DatagramPacket dp = receiveDatagramPacket(CIRCUIT_DB_SIZE);
+        circuit_DB db = new circuit_DB(dp.getData(), dp.getLength());
+        db.logReceive(routerId);
+
+        initTopologyDB(db);
+    }
+
+    /**
+     * starts over from the router's own links, with no neighbours and no routes
+     *
+     * @param db circuit database of the router
+     */
+    static void initTopologyDB(circuit_DB db) {
+        circuitDb = db;
+        neighbours = new IntIntMap();
+        ribIndex = new IntIntMap();
+        ribNextIds = new int[16];
+        ribCosts = new int[16];
+        spf.clear();
 
         // init topologyDB
         topologyDB = new ArrayList<>();
+        firstLinkEnds = new IntIntMap();
+        secondLinkEnds = new IntIntMap();
         for (int i = 0; i < circuitDb.nbr_link; i++) {
             link_cost lc = circuitDb.linkcost[i];
-            topologyDB.add(new PKT_LSPDU(0, routerId, lc.link, lc.cost, 0));
+            addToTopologyDB(new PKT_LSPDU(0, routerId, lc.link, lc.cost, 0));
+            spf.addLink(routerId, lc.link, lc.cost);
         }
         logTopologyDB();
     }
@@ -316,7 +323,7 @@ public class Router {
 
     private static void waitPackets() throws Exception {
         while (true) {
-            DatagramPacket dp = receiveDatagramPacket();
+            DatagramPacket dp = receiveDatagramPacket(PACKET_SIZE);
 
             if (dp.getLength() == 8) { // PKT_HELLO
                 processHello(new PKT_HELLO(dp.getData()));
@@ -326,7 +333,7 @@ public class Router {
         }
     }
 
-    private static void processHello(PKT_HELLO packet) throws Exception {
+    static void processHello(PKT_HELLO packet) throws Exception {
         // audit
         packet.logReceive(routerId);
 
@@ -345,20 +352,12 @@ public class Router {
         updateRIB(packet);
     }
 
-    private static void processLspdu(PKT_LSPDU packet) throws Exception {
+    static void processLspdu(PKT_LSPDU packet) throws Exception {
         // audit
         packet.logReceive(routerId);
 
-        // ignore if already seen this link
-        for (PKT_LSPDU lspdu : topologyDB) {
-            if (lspdu.router_id == packet.router_id &&
-                    lspdu.link_id == packet.link_id) {
-                return;
-            }
-        }
-
-        // add new entry to topology db and log
-        topologyDB.add(packet);
+        // ignore if already seen this link, otherwise add new entry to topology db and log
+        if (!addToTopologyDB(packet)) return;
         logTopologyDB();
 
         // update RIB
@@ -366,7 +365,8 @@ public class Router {
 
         // forward to neighbours except sender
         packet.sender = routerId;
-        for (Integer link_id : neighbours.keySet()) {
+        for (int i = 0; i < neighbours.size(); i++) {
+            int link_id = neighbours.keyAt(i);
             // exclude the sender of PKT_LSPDU
             if (link_id != packet.link_id) {
                 packet.via = link_id;
@@ -375,6 +375,37 @@ public class Router {
         }
     }
 
+    /**
+     * adds an LS PDU unless the topology database already has the same router's end of the same link. A link has two
+     * ends, so this takes a lookup or two, and only scans the database for links that more routers claim
+     *
+     * @param packet LS PDU
+     * @return false if it was already there
+     */
+    private static boolean addToTopologyDB(PKT_LSPDU packet) {
+        int first = firstLinkEnds.indexOf(packet.link_id);
+        int second = secondLinkEnds.indexOf(packet.link_id);
+        if (first < 0) {
+            firstLinkEnds.put(packet.link_id, packet.router_id);
+        } else if (firstLinkEnds.valueAt(first) == packet.router_id) {
+            return false;
+        } else if (second < 0) {
+            secondLinkEnds.put(packet.link_id, packet.router_id);
+        } else if (secondLinkEnds.valueAt(second) == packet.router_id) {
+            return false;
+        } else {
+            for (PKT_LSPDU lspdu : topologyDB) {
+                if (lspdu.router_id == packet.router_id &&
+                        lspdu.link_id == packet.link_id) {
+                    return false;
+                }
+            }
+        }
+
+        topologyDB.add(packet);
+        return true;
+    }
+
     /**
      * send packet and audit
      *
@@ -388,91 +419,121 @@ public class Router {
         packet.logSend(routerId);
     }
 
-    private static void updateRIB(PKT_HELLO packet) {
-        // neighbour of src, set route cost directly
-        Route myRoute = rib.get(packet.router_id);
+    static void updateRIB(PKT_HELLO packet) {
+        // neighbour of src, its end of the link is known before its LS PDU for the link arrives
         link_cost[] neighbourLcs = circuitDb.linkcost;
         for (int i = 0; i < circuitDb.nbr_link; i++) {
             if (neighbourLcs[i].link == packet.link_id) {
-                myRoute.totalCost = neighbourLcs[i].cost;
-                myRoute.next_id = packet.router_id;
+                spf.addLink(packet.router_id, packet.link_id, neighbourLcs[i].cost);
             }
         }
 
+        computeRIB();
         logRIB();
     }
 
-    private static void updateRIB(PKT_LSPDU packet) {
-        // link information of myself, ignore
-        if (packet.router_id == routerId) return;
+    static void updateRIB(PKT_LSPDU packet) {
+        // routes only change once both ends of a link are known
+        if (spf.addLink(packet.router_id, packet.link_id, packet.cost) && computeRIB()) {
+            logRIB();
+        }
+    }
+
+    /**
+     * recomputes every route from the shortest paths through the links known so far
+     *
+     * @return true if any route changed
+     */
+    static boolean computeRIB() {
+        spf.run(routerId);
 
+        // every router with a known link has a route, which is unreachable until both ends of a link to it are known
         boolean dirty = false;
-        for (PKT_LSPDU lspdu : topologyDB) {
-            // if current packet links to a node that has a known route, update its Route
-            if (lspdu.link_id == packet.link_id) {
-                Route myRoute = rib.get(lspdu.router_id);
-
-                if (myRoute.totalCost != Integer.MAX_VALUE) {
-                    int totalCost = myRoute.totalCost + packet.cost;
-                    // if calculated new cost is less than old, set dirty bit to 1 and log new RIB at the end
-                    if (rib.get(packet.router_id).setMinTotalCost(totalCost, packet.sender)) {
-                        dirty = true;
-                    }
+        for (int i = 0; i < spf.getRouterCount(); i++) {
+            int destId = spf.routerIdAt(i);
+            if (destId == routerId) continue;
+
+            int totalCost = spf.costAt(i);
+            int nextId = spf.nextHopAt(i);
+            int r = ribIndex.get(destId, -1);
+            if (r < 0) {
+                r = ribIndex.size();
+                if (r == ribCosts.length) {
+                    ribNextIds = Arrays.copyOf(ribNextIds, r * 2);
+                    ribCosts = Arrays.copyOf(ribCosts, r * 2);
                 }
+                ribIndex.put(destId, r);
+            } else if (ribCosts[r] == totalCost && ribNextIds[r] == nextId) {
+                continue;
             }
+            ribCosts[r] = totalCost;
+            ribNextIds[r] = nextId;
+            dirty = true;
         }
-
-        if (dirty) {
-            logRIB();
-        }
+        return dirty;
     }
 
     private static void logTopologyDB() {
         logger.println("# Topology database");
-        for (int i = 1; i <= NBR_ROUTER; i++) {
-            List<PKT_LSPDU> myLinks = new ArrayList<>();
-            for (PKT_LSPDU lspdu : topologyDB) {
-                if (lspdu.router_id == i) myLinks.add(lspdu);
+
+        // by router id, each router's links in the order they arrived
+        List<PKT_LSPDU> sorted = new ArrayList<>(topologyDB);
+        sorted.sort(Comparator.comparingInt(lspdu -> lspdu.router_id));
+        int start = 0;
+        while (start < sorted.size()) {
+            int id = sorted.get(start).router_id;
+            int end = start + 1;
+            while (end < sorted.size() && sorted.get(end).router_id == id) {
+                end++;
             }
-            if (myLinks.size() > 0) {
-                logger.printf("R%d -> R%d nbr link %d\n",
+
+            logger.printf("R%d -> R%d nbr link %d\n",
+                    routerId,
+                    id,
+                    end - start);
+            for (PKT_LSPDU lspdu : sorted.subList(start, end)) {
+                logger.printf("R%d -> R%d link %d cost %d\n",
                         routerId,
-                        i,
-                        myLinks.size());
-                for (PKT_LSPDU lspdu : myLinks) {
-                    logger.printf("R%d -> R%d link %d cost %d\n",
-                            routerId,
-                            i,
-                            lspdu.link_id,
-                            lspdu.cost);
-                }
+                        id,
+                        lspdu.link_id,
+                        lspdu.cost);
             }
+            start = end;
         }
         logger.flush();
     }
 
     private static void logRIB() {
         logger.println("# RIB");
-        for (int i = 1; i <= NBR_ROUTER; i++) {
-            if (i == routerId) {
+
+        // by router id, the router itself included
+        int[] ids = new int[ribIndex.size() + 1];
+        for (int i = 0; i < ribIndex.size(); i++) {
+            ids[i] = ribIndex.keyAt(i);
+        }
+        ids[ribIndex.size()] = routerId;
+        Arrays.sort(ids);
+
+        for (int id : ids) {
+            if (id == routerId) {
                 logger.printf("R%d -> R%d -> LOCAL, 0\n",
                         routerId,
                         routerId);
             } else {
-                Route r = rib.get(i);
+                int r = ribIndex.get(id, -1);
                 logger.printf("R%d -> R%d -> R%d, %d\n",
                         routerId,
-                        i,
-                        r.next_id,
-                        r.totalCost);
+                        id,
+                        ribNextIds[r],
+                        ribCosts[r]);
             }
         }
         logger.flush();
     }
 
-    private static DatagramPacket receiveDatagramPacket() throws Exception {
-        byte[] receiveBuffer = new byte[PACKET_SIZE];
-        DatagramPacket receiveDp = new DatagramPacket(receiveBuffer, PACKET_SIZE);
+    private static DatagramPacket receiveDatagramPacket(int size) throws Exception {
+        byte[] receiveBuffer = new byte[size];
+        DatagramPacket receiveDp = new DatagramPacket(receiveBuffer, size);
         socket.receive(receiveDp);
         return receiveDp;
     }
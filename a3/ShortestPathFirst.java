@@ -0,0 +1,271 @@
+import java.util.Arrays;
+
+/**
+ * shortest path first over a link state database. Links are added one router end at a time, as LS PDUs arrive, and a
+ * link joins the graph once both of its ends are known. run builds the graph as adjacency arrays indexed by dense
+ * router indices and runs Dijkstra with an indexed binary heap, in O((routers + links) log routers) without allocating
+ * once the arrays have grown to the topology
+ */
+final class ShortestPathFirst {
+
+    private static final int NONE = -1;
+    private static final int SETTLED = -2;
+
+    // routers, by dense index
+    private final IntIntMap routerIndex = new IntIntMap(); // router_id, index
+    private int[] routerIds = new int[16];
+    private int routerCount;
+
+    // links, by dense index, with the routers at either end once known
+    private final IntIntMap linkIndex = new IntIntMap(); // link_id, index
+    private int[] linkEndA = new int[16];
+    private int[] linkEndB = new int[16];
+    private int[] linkCosts = new int[16];
+    private int linkCount;
+    private int edgeCount; // links with both ends known
+    private boolean graphDirty;
+
+    // adjacency of router i is adjTargets and adjCosts from adjStart[i] to adjStart[i + 1]
+    private int[] adjStart = new int[17];
+    private int[] adjTargets = new int[32];
+    private int[] adjCosts = new int[32];
+
+    // result of the last run, and the heap it used
+    private int[] dist = new int[16];
+    private int[] firstHop = new int[16]; // index of the source's neighbour each route leaves through
+    private int[] heap = new int[16];
+    private int[] heapPos = new int[16]; // position in heap, NONE if never queued, SETTLED once popped
+    private int heapSize;
+    private int source = NONE;
+    private int routedCount; // routers known at the last run
+
+    /**
+     * forgets all links
+     */
+    void clear() {
+        routerIndex.clear();
+        linkIndex.clear();
+        routerCount = 0;
+        linkCount = 0;
+        edgeCount = 0;
+        graphDirty = true;
+        source = NONE;
+        routedCount = 0;
+    }
+
+    /**
+     * adds one router's end of a link. A third router announcing a link that already has two ends is ignored
+     *
+     * @param routerId router at this end
+     * @param linkId link
+     * @param cost cost of the link
+     * @return true if this completed the link, so that routes may have changed
+     */
+    boolean addLink(int routerId, int linkId, int cost) {
+        int router = indexOfRouter(routerId);
+
+        int link = linkIndex.get(linkId, NONE);
+        if (link == NONE) {
+            if (linkCount == linkEndA.length) {
+                linkEndA = Arrays.copyOf(linkEndA, linkCount * 2);
+                linkEndB = Arrays.copyOf(linkEndB, linkCount * 2);
+                linkCosts = Arrays.copyOf(linkCosts, linkCount * 2);
+            }
+            link = linkCount++;
+            linkIndex.put(linkId, link);
+            linkEndA[link] = router;
+            linkEndB[link] = NONE;
+            linkCosts[link] = cost;
+            return false;
+        }
+
+        if (linkEndB[link] != NONE || linkEndA[link] == router) return false;
+        linkEndB[link] = router;
+        edgeCount++;
+        graphDirty = true;
+        return true;
+    }
+
+    /**
+     * computes the shortest routes from a router to all others
+     *
+     * @param sourceId router to route from
+     */
+    void run(int sourceId) {
+        if (graphDirty) buildGraph();
+
+        int n = routerCount;
+        if (dist.length < n) {
+            int capacity = Math.max(n, dist.length * 2);
+            dist = new int[capacity];
+            firstHop = new int[capacity];
+            heap = new int[capacity];
+            heapPos = new int[capacity];
+        }
+        Arrays.fill(dist, 0, n, Integer.MAX_VALUE);
+        Arrays.fill(firstHop, 0, n, NONE);
+        Arrays.fill(heapPos, 0, n, NONE);
+        heapSize = 0;
+        routedCount = n;
+
+        source = routerIndex.get(sourceId, NONE);
+        if (source == NONE) return;
+        dist[source] = 0;
+        push(source);
+
+        while (heapSize > 0) {
+            int v = pop();
+            for (int e = adjStart[v]; e < adjStart[v + 1]; e++) {
+                int w = adjTargets[e];
+                if (heapPos[w] == SETTLED) continue;
+
+                int d = dist[v] + adjCosts[e];
+                if (d < 0) d = Integer.MAX_VALUE - 1; // overflow, still reachable
+                int hop = v == source ? w : firstHop[v];
+                if (d < dist[w]) {
+                    dist[w] = d;
+                    firstHop[w] = hop;
+                    if (heapPos[w] == NONE) push(w);
+                    else siftUp(heapPos[w]);
+                } else if (d == dist[w] && routerIds[hop] < routerIds[firstHop[w]]) {
+                    // equal cost routes, prefer the lower neighbour id so that the result is independent of the order
+                    // the links were learnt in
+                    firstHop[w] = hop;
+                }
+            }
+        }
+    }
+
+    /**
+     * @param routerId destination
+     * @return cost of the shortest route from the source of the last run, Integer.MAX_VALUE if there is none
+     */
+    int costTo(int routerId) {
+        int i = routerIndex.get(routerId, NONE);
+        return i == NONE ? Integer.MAX_VALUE : costAt(i);
+    }
+
+    /**
+     * @return number of routers known, which are indexed from 0 in the order they were first seen
+     */
+    int getRouterCount() {
+        return routerCount;
+    }
+
+    int routerIdAt(int i) {
+        return routerIds[i];
+    }
+
+    /**
+     * @param i router index
+     * @return cost of the shortest route from the source of the last run, Integer.MAX_VALUE if there is none
+     */
+    int costAt(int i) {
+        return source == NONE || i >= routedCount ? Integer.MAX_VALUE : dist[i];
+    }
+
+    /**
+     * @param i router index
+     * @return id of the source's neighbour the shortest route leaves through, 0 if there is none
+     */
+    int nextHopAt(int i) {
+        return source == NONE || i >= routedCount || firstHop[i] == NONE ? 0 : routerIds[firstHop[i]];
+    }
+
+    private int indexOfRouter(int routerId) {
+        int i = routerIndex.get(routerId, NONE);
+        if (i == NONE) {
+            if (routerCount == routerIds.length) routerIds = Arrays.copyOf(routerIds, routerCount * 2);
+            i = routerCount++;
+            routerIds[i] = routerId;
+            routerIndex.put(routerId, i);
+            graphDirty = true;
+        }
+        return i;
+    }
+
+    /**
+     * lays the complete links out as adjacency arrays, each link once from either end
+     */
+    private void buildGraph() {
+        int n = routerCount;
+        if (adjStart.length < n + 1) adjStart = new int[Math.max(n + 1, adjStart.length * 2)];
+        if (adjTargets.length < 2 * edgeCount) {
+            adjTargets = new int[Math.max(2 * edgeCount, adjTargets.length * 2)];
+            adjCosts = new int[adjTargets.length];
+        }
+
+        // count degrees, shifted by one so that the prefix sums give each router's start
+        Arrays.fill(adjStart, 0, n + 1, 0);
+        for (int l = 0; l < linkCount; l++) {
+            if (linkEndB[l] == NONE) continue;
+            adjStart[linkEndA[l] + 1]++;
+            adjStart[linkEndB[l] + 1]++;
+        }
+        for (int i = 0; i < n; i++) {
+            adjStart[i + 1] += adjStart[i];
+        }
+
+        // fill, using heap as the next free slot of each router
+        if (heap.length < n) heap = new int[Math.max(n, heap.length * 2)];
+        System.arraycopy(adjStart, 0, heap, 0, n);
+        for (int l = 0; l < linkCount; l++) {
+            int a = linkEndA[l];
+            int b = linkEndB[l];
+            if (b == NONE) continue;
+            adjTargets[heap[a]] = b;
+            adjCosts[heap[a]++] = linkCosts[l];
+            adjTargets[heap[b]] = a;
+            adjCosts[heap[b]++] = linkCosts[l];
+        }
+
+        graphDirty = false;
+    }
+
+    private void push(int v) {
+        heap[heapSize] = v;
+        heapPos[v] = heapSize;
+        siftUp(heapSize++);
+    }
+
+    private int pop() {
+        int v = heap[0];
+        heapPos[v] = SETTLED;
+        if (--heapSize > 0) {
+            heap[0] = heap[heapSize];
+            heapPos[heap[0]] = 0;
+            siftDown(0);
+        }
+        return v;
+    }
+
+    private void siftUp(int i) {
+        int v = heap[i];
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            int p = heap[parent];
+            if (dist[p] <= dist[v]) break;
+            heap[i] = p;
+            heapPos[p] = i;
+            i = parent;
+        }
+        heap[i] = v;
+        heapPos[v] = i;
+    }
+
+    private void siftDown(int i) {
+        int v = heap[i];
+        int half = heapSize >>> 1;
+        while (i < half) {
+            int child = 2 * i + 1;
+            if (child + 1 < heapSize && dist[heap[child + 1]] < dist[heap[child]]) child++;
+            int c = heap[child];
+            if (dist[v] <= dist[c]) break;
+            heap[i] = c;
+            heapPos[c] = i;
+            i = child;
+        }
+        heap[i] = v;
+        heapPos[v] = i;
+    }
+}
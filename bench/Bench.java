@@ -0,0 +1,330 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+/**
+ * benchmark harness modelled on JMH's average time mode. Every benchmark runs in forked JVMs with fixed heap
+ * settings, each fork does warmup iterations and then measured iterations of a fixed length, and the result is the
+ * mean time per operation over all measured iterations with its 99.9% confidence interval. Like JMH's -prof gc, the
+ * bytes allocated per operation and the number of collections are taken from the JVM's management beans
+ *
+ *     java -cp classes Bench [--filter=regex] [--forks=N] [--warmup=N] [--iterations=N] [--time=ms] [--csv=file]
+ *                            [--sizes=n,n,...] [--list]
+ */
+public final class Bench {
+
+    private static final String[] FORK_JVM_OPTIONS = {"-Xms512m", "-Xmx512m", "-XX:+UseSerialGC"};
+    private static final String RESULT_PREFIX = "#result ";
+
+    /**
+     * one invocation of the code under test, returning a value derived from its result so that the JIT cannot drop
+     * the work
+     */
+    interface Invocation {
+        long run() throws Exception;
+    }
+
+    /**
+     * creates the state of a benchmark, once per fork
+     */
+    interface Setup {
+        Invocation create() throws Exception;
+    }
+
+    static final class Case {
+        final String name;
+        final int opsPerInvocation; // operations that one invocation stands for, e.g. packets of a file
+        final Setup setup;
+
+        Case(String name, int opsPerInvocation, Setup setup) {
+            this.name = name;
+            this.opsPerInvocation = opsPerInvocation;
+            this.setup = setup;
+        }
+    }
+
+    private static int forks;
+    private static int warmup;
+    private static int iterations;
+    private static long iterationNanos;
+    private static int[] sizes;
+
+    private static volatile long sink; // consumes the values returned by invocations
+
+    private Bench() {
+
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = new Options(args, 0);
+        forks = options.getInt("forks", 2);
+        warmup = options.getInt("warmup", 5);
+        iterations = options.getInt("iterations", 5);
+        iterationNanos = options.getInt("time", 1000) * 1000000L;
+        sizes = parseSizes(options.getString("sizes", RouterBench.DEFAULT_SIZES));
+        if (forks < 0 || warmup < 0 || iterations < 1 || iterationNanos <= 0) {
+            throw new Exception("Invalid benchmark options");
+        }
+
+        List<Case> cases = cases();
+
+        // a forked JVM runs a single benchmark and reports its iterations on stdout
+        if (options.has("run")) {
+            runFork(find(cases, options.getString("run", "")));
+            return;
+        }
+
+        Pattern filter = Pattern.compile(options.getString("filter", ".*"));
+        List<Case> selected = new ArrayList<>();
+        for (Case c : cases) {
+            if (filter.matcher(c.name).find()) selected.add(c);
+        }
+        if (options.has("list")) {
+            for (Case c : selected) System.out.println(c.name);
+            return;
+        }
+
+        List<Result> results = new ArrayList<>();
+        for (Case c : selected) {
+            Result result = forks == 0 ? measure(c) : fork(c, args);
+            System.out.println(result.format());
+            results.add(result);
+        }
+
+        String csv = options.getString("csv", null);
+        if (csv != null) writeCsv(csv, results);
+    }
+
+    private static List<Case> cases() throws Exception {
+        List<Case> cases = new ArrayList<>();
+        CodecBench.register(cases);
+        SenderBench.register(cases);
+        RouterBench.register(cases, sizes);
+        return cases;
+    }
+
+    private static Case find(List<Case> cases, String name) throws Exception {
+        for (Case c : cases) {
+            if (c.name.equals(name)) return c;
+        }
+        throw new Exception("Unknown benchmark " + name);
+    }
+
+    private static int[] parseSizes(String value) throws Exception {
+        String[] parts = value.split(",");
+        int[] result = new int[parts.length];
+        try {
+            for (int i = 0; i < parts.length; i++) {
+                result[i] = Integer.parseInt(parts[i].trim());
+            }
+        } catch (NumberFormatException e) {
+            throw new Exception("Invalid input type for --sizes", e);
+        }
+        return result;
+    }
+
+    /**
+     * runs the benchmark in forks fresh JVMs, one after the other, each in its own temporary directory
+     * @param c benchmark
+     * @param args command line of the parent, passed on to the forks
+     * @return iterations of all forks
+     * @throws Exception if a fork failed
+     */
+    private static Result fork(Case c, String[] args) throws Exception {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        Result result = new Result(c.name);
+        for (int f = 0; f < forks; f++) {
+            List<String> command = new ArrayList<>();
+            command.add(java);
+            for (String option : FORK_JVM_OPTIONS) command.add(option);
+            command.add("-cp");
+            command.add(new File(System.getProperty("java.class.path")).getAbsolutePath());
+            command.add("Bench");
+            for (String arg : args) {
+                if (!arg.startsWith("--filter") && !arg.startsWith("--csv")) command.add(arg);
+            }
+            command.add("--run=" + c.name);
+
+            File dir = Files.createTempDirectory("bench").toFile();
+            Process process = new ProcessBuilder(command).directory(dir).redirectErrorStream(true).start();
+            try (BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.startsWith(RESULT_PREFIX)) {
+                        result.add(line.substring(RESULT_PREFIX.length()));
+                    } else {
+                        System.err.println(line);
+                    }
+                }
+            }
+            if (process.waitFor() != 0) throw new Exception("Fork " + f + " of " + c.name + " failed");
+            deleteTree(dir);
+        }
+        return result;
+    }
+
+    private static void runFork(Case c) throws Exception {
+        Result result = measure(c);
+        for (int i = 0; i < result.nanosPerOp.size(); i++) {
+            System.out.println(RESULT_PREFIX + result.nanosPerOp.get(i) + " " + result.bytesPerOp.get(i)
+                    + " " + result.gcCounts.get(i));
+        }
+    }
+
+    /**
+     * runs the warmup and measured iterations of a benchmark in this JVM
+     * @param c benchmark
+     * @return measured iterations
+     * @throws Exception
+     */
+    private static Result measure(Case c) throws Exception {
+        Invocation invocation = c.setup.create();
+        Result result = new Result(c.name);
+        for (int i = 0; i < warmup; i++) {
+            iteration(c, invocation, null);
+        }
+        for (int i = 0; i < iterations; i++) {
+            iteration(c, invocation, result);
+        }
+        return result;
+    }
+
+    /**
+     * calls the invocation until the iteration time is used up
+     * @param result gets the iteration's figures, or null for a warmup iteration
+     */
+    private static void iteration(Case c, Invocation invocation, Result result) throws Exception {
+        long gcBefore = gcCount();
+        long allocatedBefore = allocatedBytes();
+        long start = System.nanoTime();
+        long end = start + iterationNanos;
+        long invocations = 0;
+        long value = 0;
+        long now;
+        do {
+            value += invocation.run();
+            invocations++;
+            now = System.nanoTime();
+        } while (now - end < 0);
+        long allocated = allocatedBytes() - allocatedBefore;
+        sink += value;
+
+        if (result != null) {
+            double ops = (double) invocations * c.opsPerInvocation;
+            result.nanosPerOp.add((now - start) / ops);
+            result.bytesPerOp.add(allocatedBefore < 0 ? Double.NaN : allocated / ops);
+            result.gcCounts.add(gcCount() - gcBefore);
+        }
+    }
+
+    /**
+     * @return bytes allocated by this thread so far, or -1 if the JVM does not count them
+     */
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) return -1;
+        return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, bean.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static void writeCsv(String fileName, List<Result> results) throws IOException {
+        try (PrintWriter writer = new PrintWriter(fileName, "UTF-8")) {
+            writer.println("benchmark,iterations,ns_per_op,error_ns_per_op,bytes_per_op,gc_count");
+            for (Result r : results) {
+                writer.printf(Locale.ROOT, "%s,%d,%.3f,%.3f,%.1f,%d%n", r.name, r.nanosPerOp.size(), r.mean(),
+                        r.error(), r.meanBytes(), r.totalGcCount());
+            }
+        }
+    }
+
+    private static void deleteTree(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) deleteTree(child);
+        }
+        file.delete();
+    }
+
+    /**
+     * measured iterations of one benchmark
+     */
+    private static final class Result {
+        // two-sided 99.9% quantiles of Student's t distribution for 1 to 30 degrees of freedom, like JMH's error
+        private static final double[] T_999 = {
+                636.619, 31.599, 12.924, 8.610, 6.869, 5.959, 5.408, 5.041, 4.781, 4.587,
+                4.437, 4.318, 4.221, 4.140, 4.073, 4.015, 3.965, 3.922, 3.883, 3.850,
+                3.819, 3.792, 3.768, 3.745, 3.725, 3.707, 3.690, 3.674, 3.659, 3.646};
+        private static final double T_999_LIMIT = 3.291;
+
+        final String name;
+        final List<Double> nanosPerOp = new ArrayList<>();
+        final List<Double> bytesPerOp = new ArrayList<>();
+        final List<Long> gcCounts = new ArrayList<>();
+
+        Result(String name) {
+            this.name = name;
+        }
+
+        void add(String line) {
+            String[] parts = line.split(" ");
+            nanosPerOp.add(Double.parseDouble(parts[0]));
+            bytesPerOp.add(Double.parseDouble(parts[1]));
+            gcCounts.add(Long.parseLong(parts[2]));
+        }
+
+        double mean() {
+            double sum = 0;
+            for (double v : nanosPerOp) sum += v;
+            return sum / nanosPerOp.size();
+        }
+
+        /**
+         * @return half width of the 99.9% confidence interval of the mean, 0 for a single iteration, which has none
+         */
+        double error() {
+            int n = nanosPerOp.size();
+            if (n < 2) return 0;
+
+            double mean = mean();
+            double squares = 0;
+            for (double v : nanosPerOp) squares += (v - mean) * (v - mean);
+            double t = n - 1 <= T_999.length ? T_999[n - 2] : T_999_LIMIT;
+            return t * Math.sqrt(squares / (n - 1)) / Math.sqrt(n);
+        }
+
+        double meanBytes() {
+            double sum = 0;
+            for (double v : bytesPerOp) sum += v;
+            return sum / bytesPerOp.size();
+        }
+
+        long totalGcCount() {
+            long sum = 0;
+            for (long v : gcCounts) sum += v;
+            return sum;
+        }
+
+        String format() {
+            return String.format(Locale.ROOT, "%-40s %3d %14.3f +- %10.3f ns/op %12.1f B/op %6d gc", name,
+                    nanosPerOp.size(), mean(), error(), meanBytes(), totalGcCount());
+        }
+    }
+}
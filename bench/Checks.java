@@ -0,0 +1,136 @@
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+/**
+ * checks of cases that a transfer over a clean path rarely or never reaches, e.g. the loss of the last datagrams or
+ * files too large for the benchmarks. Every check throws if it fails, and the run fails if any check did
+ *
+ *     java -cp classes Checks [--filter=regex]
+ */
+public final class Checks {
+
+    /**
+     * one check, throws if it fails
+     */
+    interface Check {
+        void run() throws Exception;
+    }
+
+    static final class Case {
+        final String name;
+        final Check check;
+
+        Case(String name, Check check) {
+            this.name = name;
+            this.check = check;
+        }
+    }
+
+    // sparse, so that it takes no room on the disk beyond the packets that are written
+    private static final long LARGE_FILE_SIZE = 3L << 30;
+    private static final int LARGE_PAYLOAD = 9000;
+    private static final long SEED = 42;
+
+    private Checks() {
+
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = new Options(args, 0);
+        Pattern filter = Pattern.compile(options.getString("filter", ".*"));
+
+        List<Case> cases = new ArrayList<>();
+        cases.add(new Case("Sender.lossyEot", Checks::lossyEot));
+        cases.add(new Case("MappedPacketSource.largePayload", Checks::mappedLargePayload));
+
+        int failed = 0;
+        for (Case c : cases) {
+            if (!filter.matcher(c.name).find()) continue;
+
+            try {
+                c.check.run();
+                System.out.println(c.name + " OK");
+            } catch (Exception e) {
+                failed++;
+                System.out.println(c.name + " FAILED: " + e);
+            }
+        }
+        if (failed > 0) throw new Exception(failed + " checks failed");
+    }
+
+    /**
+     * the first EOT of each side is lost, so the Receiver only sees the Sender's second one, and the Sender only
+     * gets the reply to its third one, once the Receiver is done
+     */
+    private static void lossyEot() throws Exception {
+        Goodput.main(new String[]{"--loss=0.05", "--max-delay=0", "--drop-eot=1", "--timeout=60",
+                "--variants=|;--ext --mode=sr|--mode=sr;--ext --mmap|"});
+    }
+
+    /**
+     * a file of more than 2GB mapped in packets of 9000 bytes, whose segments hold fewer packets than with 500 bytes.
+     * The first and last packets and those on both sides of the first segment boundary are compared with the file,
+     * reading from its start and from an offset as for a stripe
+     */
+    private static void mappedLargePayload() throws Exception {
+        File file = File.createTempFile("checks", ".bin");
+        try {
+            int segmentPackets = Integer.MAX_VALUE / LARGE_PAYLOAD;
+            long boundary = (long) segmentPackets * LARGE_PAYLOAD;
+            // random data where the packets are compared, zeros elsewhere
+            byte[] region = new byte[20 * LARGE_PAYLOAD];
+            try (RandomAccessFile f = new RandomAccessFile(file, "rw")) {
+                f.setLength(LARGE_FILE_SIZE);
+                Random random = new Random(SEED);
+                for (long start : new long[]{0, boundary - region.length / 2, LARGE_FILE_SIZE - region.length}) {
+                    random.nextBytes(region);
+                    f.seek(start);
+                    f.write(region);
+                }
+            }
+
+            for (long offset : new long[]{0, 7 * LARGE_PAYLOAD + 123}) {
+                int packetCount = (int) ((LARGE_FILE_SIZE - offset + LARGE_PAYLOAD - 1) / LARGE_PAYLOAD);
+                try (PacketSource packets = new MappedPacketSource(file.getPath(), offset, Long.MAX_VALUE, 4,
+                        LARGE_PAYLOAD, true, 0, InetAddress.getLoopbackAddress(), 1);
+                     RandomAccessFile f = new RandomAccessFile(file, "r")) {
+                    for (int idx : new int[]{0, 1, segmentPackets - 2, segmentPackets - 1, segmentPackets,
+                            segmentPackets + 1, packetCount - 2, packetCount - 1}) {
+                        checkPacket(packets, f, offset, idx);
+                    }
+                    if (packets.get(packetCount) != null) throw new Exception("Packet after the end");
+                }
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * @throws Exception if the data of the packet differs from its range of the file
+     */
+    private static void checkPacket(PacketSource packets, RandomAccessFile f, long offset, int idx)
+            throws Exception {
+        DatagramPacket dp = packets.get(idx);
+        PacketCodec.Header h = new PacketCodec.Header();
+        if (dp == null || !PacketCodec.decode(ByteBuffer.wrap(dp.getData()), dp.getLength(), h) || h.seqNum != idx) {
+            throw new Exception("Invalid packet " + idx);
+        }
+
+        long start = offset + (long) idx * LARGE_PAYLOAD;
+        byte[] expected = new byte[(int) Math.min(LARGE_PAYLOAD, f.length() - start)];
+        f.seek(start);
+        f.readFully(expected);
+        if (!Arrays.equals(expected, Arrays.copyOfRange(dp.getData(), h.dataOffset, h.dataOffset + h.length))) {
+            throw new Exception("Wrong data in packet " + idx);
+        }
+    }
+}
@@ -0,0 +1,56 @@
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * encoding and decoding of a full data packet, with the original string based packet class and with PacketCodec
+ */
+final class CodecBench {
+
+    private static final long SEED = 42;
+
+    private CodecBench() {
+
+    }
+
+    static void register(List<Bench.Case> cases) {
+        cases.add(new Bench.Case("packet.getUDPdata", 1, () -> {
+            packet p = packet.createPacket(7, payload());
+            return () -> p.getUDPdata().length;
+        }));
+
+        cases.add(new Bench.Case("packet.parseUDPdata", 1, () -> {
+            byte[] udpData = packet.createPacket(7, payload()).getUDPdata();
+            return () -> packet.parseUDPdata(udpData).getSeqNum();
+        }));
+
+        cases.add(new Bench.Case("PacketCodec.encode", 1, () -> {
+            ByteBuffer buf = ByteBuffer.allocate(PacketCodec.MAX_UDP_LENGTH);
+            ByteBuffer data = ByteBuffer.wrap(payload().getBytes());
+            return () -> {
+                data.rewind();
+                return PacketCodec.encode(buf, PacketCodec.TYPE_DATA, 7, false, 0, data);
+            };
+        }));
+
+        cases.add(new Bench.Case("PacketCodec.decode", 1, () -> {
+            ByteBuffer buf = ByteBuffer.allocate(PacketCodec.MAX_UDP_LENGTH);
+            int udpLength = PacketCodec.encode(buf, PacketCodec.TYPE_DATA, 7, false, 0,
+                    ByteBuffer.wrap(payload().getBytes()));
+            PacketCodec.Header h = new PacketCodec.Header();
+            return () -> PacketCodec.decode(buf, udpLength, h) ? h.length : -1;
+        }));
+    }
+
+    /**
+     * @return PacketCodec.MAX_DATA_LENGTH printable characters, the same on every run
+     */
+    private static String payload() {
+        Random random = new Random(SEED);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < PacketCodec.MAX_DATA_LENGTH; i++) {
+            sb.append((char) (' ' + random.nextInt(95)));
+        }
+        return sb.toString();
+    }
+}
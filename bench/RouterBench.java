@@ -0,0 +1,239 @@
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.Random;
+
+/**
+ * Router packet encoding and link state processing. The processing benchmarks run router 1 of a synthetic topology:
+ * every invocation starts over from its circuit database, takes a PKT_HELLO from every neighbour and then the LS PDU
+ * of every link of every other router, nearest routers first, and is counted per LS PDU. The router log goes to
+ * /dev/null where the file system allows, so that formatting is measured but not the disk. The shortest path first
+ * benchmarks run the engine alone on larger topologies of the same shape
+ */
+final class RouterBench {
+
+    // every LS PDU logs the whole topology database, so processing grows with the square of the router count
+    static final String DEFAULT_SIZES = "5,20,100";
+    // router counts of the shortest path first benchmarks, which need no Router
+    private static final int[] SPF_SIZES = {100, 1000, 10000};
+    private static final int MAX_DEGREE = 4;
+    private static final int MAX_COST = 10;
+    private static final long SEED = 42;
+
+    private static DatagramSocket nse; // stands in for the emulator, never read, so sends are dropped
+
+    private RouterBench() {
+
+    }
+
+    static void register(List<Bench.Case> cases, int[] sizes) {
+        cases.add(new Bench.Case("Router.PKT_HELLO.getUDPdata", 1, () -> {
+            Router.PKT_HELLO hello = new Router.PKT_HELLO(3, 7);
+            return () -> hello.getUDPdata().length;
+        }));
+
+        cases.add(new Bench.Case("Router.PKT_HELLO.parse", 1, () -> {
+            byte[] udpData = new Router.PKT_HELLO(3, 7).getUDPdata();
+            return () -> new Router.PKT_HELLO(udpData).link_id;
+        }));
+
+        cases.add(new Bench.Case("Router.PKT_LSPDU.getUDPdata", 1, () -> {
+            Router.PKT_LSPDU lspdu = new Router.PKT_LSPDU(2, 3, 7, 5, 1);
+            return () -> lspdu.getUDPdata().length;
+        }));
+
+        cases.add(new Bench.Case("Router.PKT_LSPDU.parse", 1, () -> {
+            byte[] udpData = new Router.PKT_LSPDU(2, 3, 7, 5, 1).getUDPdata();
+            return () -> new Router.PKT_LSPDU(udpData).cost;
+        }));
+
+        for (int n : sizes) {
+            Topology topology = new Topology(n);
+            int lspdus = topology.lspdus.size();
+
+            cases.add(new Bench.Case("Router.processLspdu:n=" + n, lspdus, () -> {
+                startRouter();
+                return () -> {
+                    topology.flood();
+                    return topology.lspdus.size();
+                };
+            }));
+
+            cases.add(new Bench.Case("Router.updateRIB:n=" + n, lspdus, () -> {
+                startRouter();
+                topology.flood();
+                return () -> {
+                    for (Router.PKT_LSPDU lspdu : topology.lspdus) {
+                        Router.updateRIB(lspdu);
+                    }
+                    return lspdus;
+                };
+            }));
+        }
+
+        for (int n : SPF_SIZES) {
+            List<int[]> links = randomLinks(n);
+
+            cases.add(new Bench.Case("ShortestPathFirst.run:n=" + n, 1, () -> {
+                ShortestPathFirst spf = new ShortestPathFirst();
+                load(spf, links);
+                return () -> {
+                    spf.run(1);
+                    return spf.costTo(n);
+                };
+            }));
+
+            cases.add(new Bench.Case("ShortestPathFirst.load:n=" + n, 1, () -> {
+                ShortestPathFirst spf = new ShortestPathFirst();
+                return () -> {
+                    spf.clear();
+                    load(spf, links);
+                    return spf.costTo(n);
+                };
+            }));
+        }
+    }
+
+    /**
+     * adds both ends of every link and runs from router 1
+     */
+    private static void load(ShortestPathFirst spf, List<int[]> links) {
+        for (int id = 0; id < links.size(); id++) {
+            int[] link = links.get(id);
+            spf.addLink(link[0], id + 1, link[2]);
+            spf.addLink(link[1], id + 1, link[2]);
+        }
+        spf.run(1);
+    }
+
+    /**
+     * starts router 1 on an ephemeral port, sending to a socket that is never read
+     */
+    private static void startRouter() throws Exception {
+        nse = new DatagramSocket();
+        Path log = Paths.get("router1.log");
+        try {
+            Files.deleteIfExists(log);
+            Files.createSymbolicLink(log, Paths.get("/dev/null"));
+        } catch (IOException | UnsupportedOperationException e) {
+            // log to the file instead
+        }
+
+        Router.validateInput(new String[]{"1", "127.0.0.1", Integer.toString(nse.getLocalPort()), "0"});
+        Router.init();
+    }
+
+    /**
+     * n routers on a ring, plus random chords up to MAX_DEGREE links per router, with random costs
+     *
+     * @return {router a, router b, cost} of every link, the link id is the index plus 1
+     */
+    private static List<int[]> randomLinks(int n) {
+        Random random = new Random(SEED);
+        List<int[]> links = new ArrayList<>();
+        int[] degree = new int[n + 1];
+        for (int a = 1; a < n; a++) {
+            links.add(new int[]{a, a + 1, 1 + random.nextInt(MAX_COST)});
+            degree[a]++;
+            degree[a + 1]++;
+        }
+        if (n > 2) {
+            links.add(new int[]{n, 1, 1 + random.nextInt(MAX_COST)});
+            degree[n]++;
+            degree[1]++;
+        }
+        for (int attempt = 0; attempt < n * MAX_DEGREE; attempt++) {
+            int a = 1 + random.nextInt(n);
+            int b = 1 + random.nextInt(n);
+            if (a == b || degree[a] >= MAX_DEGREE || degree[b] >= MAX_DEGREE) continue;
+            links.add(new int[]{a, b, 1 + random.nextInt(MAX_COST)});
+            degree[a]++;
+            degree[b]++;
+        }
+        return links;
+    }
+
+    /**
+     * n routers on a ring, plus random chords up to MAX_DEGREE links per router, with random costs. Link ids are
+     * unique across the topology and start at 1
+     */
+    private static final class Topology {
+
+        private final Router.circuit_DB db; // links of router 1
+        private final List<Router.PKT_HELLO> hellos = new ArrayList<>();
+        final List<Router.PKT_LSPDU> lspdus = new ArrayList<>();
+        private final int[] senders; // original sender and via of each LS PDU, which processing overwrites
+        private final int[] vias;
+
+        Topology(int n) {
+            List<int[]> links = randomLinks(n);
+
+            // router 1's circuit database and hellos
+            List<Router.link_cost> own = new ArrayList<>();
+            for (int id = 0; id < links.size(); id++) {
+                int[] link = links.get(id);
+                if (link[0] == 1 || link[1] == 1) {
+                    own.add(new Router.link_cost(id + 1, link[2]));
+                    hellos.add(new Router.PKT_HELLO(link[0] == 1 ? link[1] : link[0], id + 1));
+                }
+            }
+            db = new Router.circuit_DB(own.size(), own.toArray(new Router.link_cost[0]));
+
+            // breadth first from router 1, every router's LS PDUs come through the neighbour that leads to it
+            int[] firstHop = new int[n + 1];
+            int[] firstLink = new int[n + 1];
+            Queue<Integer> queue = new ArrayDeque<>();
+            queue.add(1);
+            firstHop[1] = 1;
+            while (!queue.isEmpty()) {
+                int r = queue.poll();
+                for (int id = 0; id < links.size(); id++) {
+                    int[] link = links.get(id);
+                    int other = link[0] == r ? link[1] : link[1] == r ? link[0] : 0;
+                    if (other == 0 || firstHop[other] != 0) continue;
+
+                    firstHop[other] = r == 1 ? other : firstHop[r];
+                    firstLink[other] = r == 1 ? id + 1 : firstLink[r];
+                    queue.add(other);
+                }
+
+                if (r == 1) continue;
+                for (int id = 0; id < links.size(); id++) {
+                    int[] link = links.get(id);
+                    if (link[0] == r || link[1] == r) {
+                        lspdus.add(new Router.PKT_LSPDU(firstHop[r], r, id + 1, link[2], firstLink[r]));
+                    }
+                }
+            }
+
+            senders = new int[lspdus.size()];
+            vias = new int[lspdus.size()];
+            for (int i = 0; i < lspdus.size(); i++) {
+                senders[i] = lspdus.get(i).sender;
+                vias[i] = lspdus.get(i).via;
+            }
+        }
+
+        /**
+         * runs router 1 from its circuit database until it has seen every LS PDU
+         */
+        void flood() throws Exception {
+            Router.initTopologyDB(db);
+            for (Router.PKT_HELLO hello : hellos) {
+                Router.processHello(hello);
+            }
+            for (int i = 0; i < lspdus.size(); i++) {
+                Router.PKT_LSPDU lspdu = lspdus.get(i);
+                lspdu.sender = senders[i];
+                lspdu.via = vias[i];
+                Router.processLspdu(lspdu);
+            }
+        }
+    }
+}
@@ -0,0 +1,82 @@
+import java.io.File;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+/**
+ * the Sender's chunking of a file into encoded datagrams, per 500 bytes of file. The eager variant is initPackets
+ * reading the whole file, the others get every packet from the PacketSource that initPackets creates for --stream,
+ * --mmap and --compress, in order like a window sliding over the file
+ */
+final class SenderBench {
+
+    private static final int FILE_SIZE = 1 << 20;
+    private static final int PACKETS = (FILE_SIZE + PacketCodec.MAX_DATA_LENGTH - 1) / PacketCodec.MAX_DATA_LENGTH;
+    private static final int WINDOW = 16;
+    private static final InetAddress LOCALHOST = InetAddress.getLoopbackAddress();
+    private static final long SEED = 42;
+
+    private SenderBench() {
+
+    }
+
+    static void register(List<Bench.Case> cases) {
+        cases.add(new Bench.Case("Sender.initPackets", PACKETS, () -> {
+            Sender.parseInput(new String[]{"127.0.0.1", "1", "2", testFile().getPath()});
+            return () -> {
+                Sender.initPackets();
+                return Sender.packets.get(PACKETS - 1).getLength();
+            };
+        }));
+
+        cases.add(chunkAll("Sender.initPackets.stream", file -> new StreamingPacketSource(file, 0, Long.MAX_VALUE,
+                WINDOW, PacketCodec.MAX_DATA_LENGTH, false, 0, null, LOCALHOST, 1)));
+        cases.add(chunkAll("Sender.initPackets.mmap", file -> new MappedPacketSource(file, 0, Long.MAX_VALUE,
+                WINDOW, PacketCodec.MAX_DATA_LENGTH, false, 0, LOCALHOST, 1)));
+        cases.add(chunkAll("Sender.initPackets.compress", file -> new StreamingPacketSource(file, 0, Long.MAX_VALUE,
+                WINDOW, PacketCodec.MAX_DATA_LENGTH, true, 0, new Deflater(), LOCALHOST, 1)));
+    }
+
+    interface SourceFactory {
+        PacketSource open(String fileName) throws IOException;
+    }
+
+    private static Bench.Case chunkAll(String name, SourceFactory factory) {
+        return new Bench.Case(name, PACKETS, () -> {
+            String file = testFile().getPath();
+            return () -> {
+                long length = 0;
+                try (PacketSource packets = factory.open(file)) {
+                    DatagramPacket dp;
+                    for (int idx = 0; (dp = packets.get(idx)) != null; idx++) {
+                        length += dp.getLength();
+                    }
+                }
+                return length;
+            };
+        });
+    }
+
+    /**
+     * @return FILE_SIZE bytes of text that compresses about as well as source code, the same on every run
+     */
+    private static File testFile() throws IOException {
+        Random random = new Random(SEED);
+        String[] words = {"packet", "window", "ack", "seqnum", "sender", "receiver", "timeout", "int", "return",
+                "{", "}", ";", "(", ")", "=", "\n"};
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < FILE_SIZE) {
+            sb.append(words[random.nextInt(words.length)]).append(' ');
+        }
+        sb.setLength(FILE_SIZE);
+
+        File file = File.createTempFile("bench", ".txt");
+        file.deleteOnExit();
+        Files.write(file.toPath(), sb.toString().getBytes("UTF-8"));
+        return file;
+    }
+}